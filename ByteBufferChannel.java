@@ -0,0 +1,101 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Read-only channel over an in-memory buffer, so data held in memory can be passed anywhere a
+ * file channel is accepted. Senders that recognise it write {@link #slice} views straight to the
+ * socket instead of copying through a read buffer.
+ */
+public class ByteBufferChannel implements SeekableByteChannel, Transport.DirectSource {
+    private final ByteBuffer buffer;
+    private boolean open = true;
+
+    public ByteBufferChannel(ByteBuffer buffer) {
+        this.buffer = buffer.duplicate();
+        this.buffer.position(0);
+    }
+
+    /**
+     * Returns a view of the next {@code length} bytes and advances past them.
+     */
+    public ByteBuffer slice(int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(slice.position() + Math.min(length, slice.remaining()));
+        buffer.position(slice.limit());
+        return slice;
+    }
+
+    @Override
+    public void transferTo(long count, WritableByteChannel target) throws IOException {
+        checkOpen();
+        ByteBuffer data = slice((int) Math.min(Integer.MAX_VALUE, count));
+        if (data.remaining() < count) {
+            throw new EOFException("Buffer ended " + (count - data.remaining()) + " bytes before the announced size");
+        }
+        while (data.hasRemaining()) {
+            target.write(data);
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws ClosedChannelException {
+        checkOpen();
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        ByteBuffer slice = slice(dst.remaining());
+        int length = slice.remaining();
+        dst.put(slice);
+        return length;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws ClosedChannelException {
+        checkOpen();
+        return buffer.position();
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws ClosedChannelException {
+        checkOpen();
+        buffer.position((int) Math.min(newPosition, buffer.limit()));
+        return this;
+    }
+
+    @Override
+    public long size() throws ClosedChannelException {
+        checkOpen();
+        return buffer.limit();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Client side of the cache protocol. Keeps a bounded pool of long-lived {@link MuxConnection}s
+ * to one cache service; concurrent GET and STORE requests share those connections instead of
+ * opening a new socket each.
+ */
+public class CacheClient implements Closeable {
+    public static final int DEFAULT_POOL_SIZE = 4;
+    private static final long REQUEST_TIMEOUT_MILLIS = 10000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 3000;
+
+    private final InetSocketAddress address;
+    private final MuxConnection[] connections;
+    // Slots whose connection is being opened, outside the lock
+    private final boolean[] connecting;
+    private boolean closed;
+
+    /**
+     * A cache hit. The body must be read to the end or closed; it is {@code null} when the file
+     * was larger than the requested maximum. A deflated body holds {@link CompressedTransport}
+     * blocks. The checksum is that of the whole cached file, also for a range, so the caller can
+     * check that the copy is current; it is {@code null} if the cache did not send one.
+     */
+    public static class CachedFile implements Closeable {
+        private final long size;
+        private final ReadableByteChannel body;
+        private final String checksum;
+        private final boolean deflated;
+
+        CachedFile(long size, ReadableByteChannel body, String checksum) {
+            this(size, body, checksum, false);
+        }
+
+        CachedFile(long size, ReadableByteChannel body, String checksum, boolean deflated) {
+            this.size = size;
+            this.body = body;
+            this.checksum = checksum;
+            this.deflated = deflated;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public ReadableByteChannel body() {
+            return body;
+        }
+
+        public boolean isDeflated() {
+            return deflated;
+        }
+
+        public String checksum() {
+            return checksum;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (body != null) {
+                body.close();
+            }
+        }
+    }
+
+    public CacheClient(String host, int port, int poolSize) {
+        this.address = new InetSocketAddress(host, port);
+        this.connections = new MuxConnection[poolSize];
+        this.connecting = new boolean[poolSize];
+    }
+
+    /**
+     * Returns the cached file, or {@code null} if the cache does not hold it.
+     */
+    public CachedFile get(String filename) throws IOException {
+        return get(filename, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #get(String)}, but the cache only sends the contents if they are at most
+     * {@code maxBodySize} bytes; larger hits come back without a body.
+     */
+    public CachedFile get(String filename, long maxBodySize) throws IOException {
+        MuxConnection.Frame response = connection().call(CacheProtocol.GET, CacheProtocol.encodeGet(filename, maxBodySize),
+                null, 0, REQUEST_TIMEOUT_MILLIS);
+        if (response.opcode == CacheProtocol.FOUND && response.body != null) {
+            return found(response);
+        }
+        if (response.opcode == CacheProtocol.TOO_LARGE) {
+            return new CachedFile(CacheProtocol.decodeSize(response.payload), null, null);
+        }
+        if (response.body != null) {
+            response.body.close();
+        }
+        if (response.opcode == CacheProtocol.ERROR) {
+            throw new IOException(CacheProtocol.decodeString(response.payload, 0));
+        }
+        return null;
+    }
+
+    /**
+     * Like {@link #get(String)}, but the cache sends its deflated copy of the file if it has one,
+     * so the file can be passed on to a client without compressing it again.
+     */
+    public CachedFile getDeflated(String filename) throws IOException {
+        MuxConnection.Frame response = connection().call(CacheProtocol.GET_DEFLATED,
+                CacheProtocol.encodeGet(filename, Long.MAX_VALUE), null, 0, REQUEST_TIMEOUT_MILLIS);
+        if (response.opcode == CacheProtocol.FOUND_DEFLATED && response.body != null) {
+            byte[] payload = response.payload;
+            return new CachedFile(CacheProtocol.decodeSize(payload), response.body, CacheProtocol.decodeChecksum(payload), true);
+        }
+        if (response.opcode == CacheProtocol.FOUND && response.body != null) {
+            return found(response);
+        }
+        if (response.body != null) {
+            response.body.close();
+        }
+        if (response.opcode == CacheProtocol.ERROR) {
+            throw new IOException(CacheProtocol.decodeString(response.payload, 0));
+        }
+        return null;
+    }
+
+    /**
+     * Returns {@code length} bytes of the cached file from {@code offset}, or {@code null} if the
+     * cache does not hold the file or the file does not cover the range.
+     */
+    public CachedFile getRange(String filename, long offset, long length) throws IOException {
+        MuxConnection.Frame response = connection().call(CacheProtocol.GET_RANGE,
+                CacheProtocol.encodeGetRange(filename, offset, length), null, 0, REQUEST_TIMEOUT_MILLIS);
+        if (response.opcode == CacheProtocol.FOUND && response.body != null) {
+            return found(response);
+        }
+        if (response.body != null) {
+            response.body.close();
+        }
+        if (response.opcode == CacheProtocol.ERROR) {
+            throw new IOException(CacheProtocol.decodeString(response.payload, 0));
+        }
+        return null;
+    }
+
+    /**
+     * Uploads the whole of {@code source} under {@code filename}. Returns whether the cache
+     * acknowledged the store.
+     */
+    public boolean store(String filename, SeekableByteChannel source) throws IOException {
+        long size = source.size();
+        MuxConnection.Frame response = connection().call(CacheProtocol.STORE, CacheProtocol.encodeStore(filename, size),
+                source, size, REQUEST_TIMEOUT_MILLIS);
+        return response.opcode == CacheProtocol.STORED;
+    }
+
+    /**
+     * Drops a file from the cache because the server's copy was replaced or deleted. Returns
+     * whether the cache acknowledged it.
+     */
+    public boolean invalidate(String filename) throws IOException {
+        MuxConnection.Frame response = connection().call(CacheProtocol.INVALIDATE, CacheProtocol.encodeString(filename),
+                null, 0, REQUEST_TIMEOUT_MILLIS);
+        return response.opcode == CacheProtocol.INVALIDATED;
+    }
+
+    private static CachedFile found(MuxConnection.Frame response) {
+        return new CachedFile(CacheProtocol.decodeSize(response.payload), response.body,
+                CacheProtocol.decodeChecksum(response.payload));
+    }
+
+    /**
+     * Picks the least busy pooled connection, opening a new one only while every open
+     * connection already has requests in flight and the pool has room. The slot is reserved
+     * under the lock and the connection opened outside it, so an unreachable cache holds up
+     * only the requests that need a new connection, and those for no longer than the connect
+     * timeout.
+     */
+    private MuxConnection connection() throws IOException {
+        int slot;
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+            while (true) {
+                if (closed) {
+                    throw new IOException("Cache client is closed");
+                }
+                MuxConnection best = null;
+                int freeSlot = -1;
+                for (int i = 0; i < connections.length; i++) {
+                    MuxConnection connection = connections[i];
+                    if (connecting[i]) {
+                        continue;
+                    } else if (connection == null || !connection.isOpen()) {
+                        connections[i] = null;
+                        if (freeSlot < 0) {
+                            freeSlot = i;
+                        }
+                    } else if (best == null || connection.activeRequests() < best.activeRequests()) {
+                        best = connection;
+                    }
+                }
+                if (best != null && (best.activeRequests() == 0 || freeSlot < 0)) {
+                    return best;
+                } else if (freeSlot >= 0) {
+                    connecting[freeSlot] = true;
+                    slot = freeSlot;
+                    break;
+                }
+                // Every slot is being connected; wait for one of them
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("No connection to the cache at " + address
+                            + " within " + CONNECT_TIMEOUT_MILLIS + " ms");
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for a cache connection");
+                }
+            }
+        }
+        MuxConnection connection = null;
+        try {
+            connection = connect(slot);
+        } finally {
+            synchronized (this) {
+                connecting[slot] = false;
+                if (closed && connection != null) {
+                    connection.close();
+                    connection = null;
+                }
+                connections[slot] = connection;
+                notifyAll();
+            }
+        }
+        if (connection == null) {
+            throw new IOException("Cache client is closed");
+        }
+        return connection;
+    }
+
+    private MuxConnection connect(int slot) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(address, CONNECT_TIMEOUT_MILLIS);
+        } catch (SocketTimeoutException e) {
+            channel.close();
+            // Reported like a refused connection, so the cluster takes the node off the ring
+            throw new ConnectException("Connecting to the cache at " + address + " timed out");
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        channel.socket().setTcpNoDelay(true);
+        MuxConnection connection = new MuxConnection(channel, null);
+        Thread reader = new Thread(() -> {
+            try {
+                connection.readLoop();
+            } catch (IOException e) {
+                Log.warn("Cache connection lost: " + e.getMessage());
+            }
+        }, "cache-connection-" + slot);
+        reader.setDaemon(true);
+        reader.start();
+        return connection;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (int i = 0; i < connections.length; i++) {
+            if (connections[i] != null) {
+                connections[i].close();
+                connections[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The cache nodes behind a server, with files spread across them by consistent hashing. Every
+ * node takes {@link #VIRTUAL_NODES} points on a hash ring, and a file belongs to the first node
+ * clockwise from the hash of its name, so adding or removing a node only moves the files between
+ * it and its neighbours on the ring. Files read often are also stored on the next nodes along the
+ * ring, and their reads are spread across those replicas. A node that cannot be reached is taken
+ * off the ring for {@link #RETRY_MILLIS}, its files falling to the next node meanwhile.
+ */
+public class CacheCluster implements Closeable {
+    public static final int VIRTUAL_NODES = 160;
+    public static final int DEFAULT_REPLICAS = 1;
+    private static final long RETRY_MILLIS = 5000;
+    // Reads of a file, as estimated by the sketch, from which it counts as hot
+    private static final int HOT_THRESHOLD = 8;
+    private static final int SKETCH_WIDTH = 4096;
+
+    /**
+     * One cache service and the pooled connections to it.
+     */
+    private static final class Node {
+        final String name;
+        final CacheClient client;
+        // When a node taken off the ring is tried again; 0 while it is on the ring
+        long downUntil;
+
+        Node(String name, CacheClient client) {
+            this.name = name;
+            this.client = client;
+        }
+    }
+
+    private interface Call<T> {
+        T run(CacheClient client) throws IOException;
+    }
+
+    private final List<Node> nodes = new ArrayList<>();
+    private final int replicas;
+    private final FrequencySketch reads;
+    // Replaced whole when nodes leave or rejoin, so lookups need no lock
+    private volatile NavigableMap<Long, Node> ring;
+    private volatile long nextRetry;
+    private volatile int liveNodes;
+
+    /**
+     * @param addresses comma-separated {@code host} or {@code host:port} of each node; a host
+     *                  without a port uses {@code defaultPort}
+     * @param replicas  how many nodes keep a hot file
+     */
+    public CacheCluster(String addresses, int defaultPort, int poolSize, int replicas) {
+        for (String address : addresses.split(",")) {
+            address = address.trim();
+            if (address.isEmpty()) {
+                continue;
+            }
+            int colon = address.lastIndexOf(':');
+            String host = colon >= 0 ? address.substring(0, colon) : address;
+            int port = colon >= 0 ? Integer.parseInt(address.substring(colon + 1)) : defaultPort;
+            nodes.add(new Node(host + ":" + port, new CacheClient(host, port, poolSize)));
+        }
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("No cache node given");
+        }
+        if (replicas < 1) {
+            throw new IllegalArgumentException("Number of replicas must be at least 1");
+        }
+        this.replicas = Math.min(replicas, nodes.size());
+        this.reads = this.replicas > 1 ? new FrequencySketch(SKETCH_WIDTH) : null;
+        this.ring = buildRing(nodes);
+        this.liveNodes = nodes.size();
+    }
+
+    /**
+     * Places every node at {@link #VIRTUAL_NODES} points derived from its address, so the ring,
+     * and with it where each file is cached, is the same every time the server starts.
+     */
+    private static NavigableMap<Long, Node> buildRing(List<Node> members) {
+        NavigableMap<Long, Node> ring = new TreeMap<>();
+        for (Node node : members) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(node.name + "#" + i), node);
+            }
+        }
+        return ring;
+    }
+
+    /**
+     * 64-bit FNV-1a of the UTF-8 name, followed by the MurmurHash3 finalizer so that similar
+     * names land far apart on the ring.
+     */
+    private static long hash(String key) {
+        long hash = 0xCBF29CE484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001B3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * The ring of nodes that can be reached, with nodes whose retry time has come put back.
+     */
+    private NavigableMap<Long, Node> ring() {
+        long retry = nextRetry;
+        if (retry != 0 && System.currentTimeMillis() >= retry) {
+            rejoin();
+        }
+        return ring;
+    }
+
+    private synchronized void rejoin() {
+        long now = System.currentTimeMillis();
+        if (nextRetry == 0 || now < nextRetry) {
+            return;
+        }
+        for (Node node : nodes) {
+            if (node.downUntil != 0 && now >= node.downUntil) {
+                node.downUntil = 0;
+                Log.info("Cache node " + node.name + " is back on the ring.");
+            }
+        }
+        updateRing();
+    }
+
+    private synchronized void markDown(Node node) {
+        if (node.downUntil != 0) {
+            return;
+        }
+        node.downUntil = System.currentTimeMillis() + RETRY_MILLIS;
+        Log.warn("Cache node " + node.name + " cannot be reached; taken off the ring for " + RETRY_MILLIS / 1000 + " s.");
+        updateRing();
+    }
+
+    // The caller holds the lock
+    private void updateRing() {
+        List<Node> members = new ArrayList<>();
+        long retry = 0;
+        for (Node node : nodes) {
+            if (node.downUntil == 0) {
+                members.add(node);
+            } else if (retry == 0 || node.downUntil < retry) {
+                retry = node.downUntil;
+            }
+        }
+        ring = buildRing(members);
+        liveNodes = members.size();
+        nextRetry = retry;
+    }
+
+    /**
+     * The first {@code count} distinct nodes clockwise from the hash of {@code filename}; fewer
+     * if fewer nodes are on the ring.
+     */
+    private List<Node> owners(String filename, int count) {
+        NavigableMap<Long, Node> current = ring();
+        if (current.isEmpty()) {
+            return Collections.emptyList();
+        }
+        long hash = hash(filename);
+        if (count == 1) {
+            Map.Entry<Long, Node> owner = current.ceilingEntry(hash);
+            return Collections.singletonList((owner != null ? owner : current.firstEntry()).getValue());
+        }
+        List<Node> owners = new ArrayList<>(count);
+        for (Node node : current.tailMap(hash, true).values()) {
+            if (!owners.contains(node) && owners.add(node) && owners.size() == count) {
+                return owners;
+            }
+        }
+        for (Node node : current.headMap(hash, false).values()) {
+            if (!owners.contains(node) && owners.add(node) && owners.size() == count) {
+                return owners;
+            }
+        }
+        return owners;
+    }
+
+    /**
+     * The nodes that keep {@code filename}: its owner, and for a hot file the replicas after it.
+     */
+    private List<Node> holders(String filename) {
+        return owners(filename, replicas > 1 && isHot(filename) ? replicas : 1);
+    }
+
+    private boolean isHot(String filename) {
+        synchronized (reads) {
+            return reads.frequency(filename) >= HOT_THRESHOLD;
+        }
+    }
+
+    /**
+     * Picks the node to read {@code filename} from, counting the read: the owner, or any of the
+     * replicas of a hot file.
+     */
+    private Node reader(String filename) throws IOException {
+        if (replicas > 1) {
+            synchronized (reads) {
+                reads.increment(filename);
+            }
+        }
+        List<Node> holders = holders(filename);
+        if (holders.isEmpty()) {
+            throw new IOException("No cache node can be reached");
+        }
+        return holders.get(ThreadLocalRandom.current().nextInt(holders.size()));
+    }
+
+    private <T> T call(Node node, Call<T> call) throws IOException {
+        try {
+            return call.run(node.client);
+        } catch (ConnectException e) {
+            markDown(node);
+            throw e;
+        }
+    }
+
+    /**
+     * See {@link CacheClient#get(String)}.
+     */
+    public CacheClient.CachedFile get(String filename) throws IOException {
+        return get(filename, Long.MAX_VALUE);
+    }
+
+    /**
+     * See {@link CacheClient#get(String, long)}.
+     */
+    public CacheClient.CachedFile get(String filename, long maxBodySize) throws IOException {
+        return call(reader(filename), client -> client.get(filename, maxBodySize));
+    }
+
+    /**
+     * See {@link CacheClient#getDeflated(String)}.
+     */
+    public CacheClient.CachedFile getDeflated(String filename) throws IOException {
+        return call(reader(filename), client -> client.getDeflated(filename));
+    }
+
+    /**
+     * See {@link CacheClient#getRange(String, long, long)}.
+     */
+    public CacheClient.CachedFile getRange(String filename, long offset, long length) throws IOException {
+        return call(reader(filename), client -> client.getRange(filename, offset, length));
+    }
+
+    /**
+     * Stores a file on its owner, and a hot file on each of its replicas too. Returns whether
+     * every one of them acknowledged the store.
+     */
+    public boolean store(String filename, SeekableByteChannel source) throws IOException {
+        List<Node> holders = holders(filename);
+        if (holders.isEmpty()) {
+            throw new IOException("No cache node can be reached");
+        }
+        boolean stored = true;
+        for (Node node : holders) {
+            source.position(0);
+            stored &= call(node, client -> client.store(filename, source));
+        }
+        return stored;
+    }
+
+    /**
+     * Drops a file from every node that may hold it: its owner and the replicas a hot file is
+     * stored on. Returns whether all of them acknowledged it.
+     */
+    public boolean invalidate(String filename) throws IOException {
+        List<Node> owners = owners(filename, replicas);
+        if (owners.isEmpty()) {
+            throw new IOException("No cache node can be reached");
+        }
+        boolean invalidated = true;
+        for (Node node : owners) {
+            invalidated &= call(node, client -> client.invalidate(filename));
+        }
+        return invalidated;
+    }
+
+    /**
+     * Number of nodes on the ring, i.e. configured and reachable.
+     */
+    public int liveNodes() {
+        ring();
+        return liveNodes;
+    }
+
+    @Override
+    public void close() {
+        for (Node node : nodes) {
+            node.client.close();
+        }
+    }
+}
@@ -1,25 +1,416 @@
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Two-tier cache: a byte-budgeted memory tier of files mapped from the chunk store, in front of
+ * the size-bounded chunk store on disk. Each tier has its own eviction policy; files small
+ * enough for the memory tier are mapped on a disk hit and then served from the mapping without
+ * reading or copying them. Both tiers deduplicate: files share chunks on disk, and files with
+ * the same contents share one mapping, charged once to the memory budget.
+ */
 public class CacheManager {
+    public static final String DEFAULT_POLICY = "lru";
+    public static final long DEFAULT_MEMORY_CAPACITY = 64L * 1024 * 1024;
+    public static final long DEFAULT_DISK_CAPACITY = 1024L * 1024 * 1024;
+    private static final String TEMP_PREFIX = ".store-";
+    // A deflated copy is kept only if it is at most this fraction of the file
+    private static final double MAX_DEFLATED_RATIO = 0.9;
+    private static final long DEFLATE_SAMPLE_SIZE = 1024 * 1024;
+    // A deflated copy is stored under the file name, this infix, which no file name has, and the
+    // content id of the file, so it can never be mistaken for a copy of other contents
+    private static final String DEFLATED_INFIX = "\0" + CompressedTransport.DEFLATE + "\0";
+
     private final Path cacheDirectory;
+    private final ChunkStore store;
+    private final long maxMemoryEntrySize;
+    // The memory policy and buffers are keyed by content id, the disk policy by file name
+    private final EvictionPolicy memoryPolicy;
+    private final EvictionPolicy diskPolicy;
+    private final Map<String, ChunkStore.MappedFile> memory = new HashMap<>();
+    private final Map<String, String> memoryContents = new HashMap<>();
+    // Every cached file with its size, checksum and tier, readable without the lock
+    private final FileIndex files = new FileIndex();
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong memoryEvictions = new AtomicLong();
+    private final AtomicLong diskEvictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
 
     public CacheManager(String cacheDir) throws IOException {
+        this(cacheDir, DEFAULT_POLICY, DEFAULT_MEMORY_CAPACITY, DEFAULT_DISK_CAPACITY);
+    }
+
+    public CacheManager(String cacheDir, String policy, long memoryCapacity, long diskCapacity) throws IOException {
         this.cacheDirectory = Paths.get(cacheDir);
+        this.maxMemoryEntrySize = memoryCapacity / 8;
+        this.memoryPolicy = EvictionPolicy.create(policy, memoryCapacity);
+        this.diskPolicy = EvictionPolicy.create(policy, diskCapacity);
         Files.createDirectories(cacheDirectory);
+        this.store = new ChunkStore(cacheDirectory);
+        loadDiskTier();
+    }
+
+    /**
+     * Registers files left by a previous run, oldest first. Plain files cached by earlier
+     * versions are moved into the chunk store, and interrupted stores are removed.
+     */
+    private void loadDiskTier() throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(cacheDirectory)) {
+            for (Path file : entries) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(TEMP_PREFIX)) {
+                    Files.deleteIfExists(file);
+                } else if (Files.isRegularFile(file)) {
+                    store.storeFile(name, file);
+                    Files.delete(file);
+                }
+            }
+        }
+        List<ChunkStore.Manifest> manifests = store.manifests();
+        manifests.sort(Comparator.comparingLong(ChunkStore.Manifest::modified));
+        for (ChunkStore.Manifest manifest : manifests) {
+            int infix = manifest.name().indexOf(DEFLATED_INFIX);
+            if (infix >= 0) {
+                ChunkStore.Manifest file = store.manifest(manifest.name().substring(0, infix));
+                if (file == null || !deflatedName(file).equals(manifest.name())) {
+                    store.remove(manifest.name());
+                }
+                continue;
+            }
+            ChunkStore.Manifest deflated = store.manifest(deflatedName(manifest));
+            files.put(FileIndex.Entry.of(manifest, FileIndex.Tier.DISK));
+            registerOnDisk(manifest.name(), manifest.size() + (deflated != null ? deflated.size() : 0));
+        }
     }
 
     public boolean contains(String filename) {
-        return Files.exists(cacheDirectory.resolve(filename));
+        return files.contains(filename);
+    }
+
+    /**
+     * The size, checksum and tier of a cached file, or {@code null} if it is not cached. Does not
+     * count as an access.
+     */
+    public FileIndex.Entry lookup(String filename) {
+        return files.get(filename);
+    }
+
+    /**
+     * Opens a cached file for reading, or returns {@code null} if it is not cached. Memory hits
+     * are served from the file's shared mapping, which stays mapped until the channel is closed
+     * even if the file is evicted meanwhile; disk hits from the chunk store.
+     */
+    public SeekableByteChannel openFile(String filename) throws IOException {
+        synchronized (this) {
+            diskPolicy.recordAccess(filename);
+            String content = memoryContents.get(filename);
+            ChunkStore.MappedFile mapped = content != null ? memory.get(content) : null;
+            if (mapped != null) {
+                memoryPolicy.recordAccess(content);
+                memoryHits.incrementAndGet();
+                return mapped.open();
+            }
+            if (!diskPolicy.contains(filename)) {
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+
+        ChunkStore.ChunkChannel channel = store.open(filename);
+        if (channel == null) {
+            synchronized (this) {
+                diskPolicy.remove(filename);
+                files.remove(filename);
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+        diskHits.incrementAndGet();
+
+        long size = channel.size();
+        if (size > maxMemoryEntrySize) {
+            return channel;
+        }
+        List<ChunkStore.MappedFile> released = new ArrayList<>();
+        try {
+            String content = channel.manifest().contentId();
+            synchronized (this) {
+                memoryPolicy.recordAccess(content);
+                memoryContents.put(filename, content);
+                ChunkStore.MappedFile shared = memory.get(content);
+                if (shared != null) {
+                    // Another name for contents already in memory
+                    files.setTier(filename, FileIndex.Tier.MEMORY);
+                    return shared.open();
+                }
+            }
+            // Mapped while the open channel holds the chunks
+            ChunkStore.MappedFile mapped = store.map(channel.manifest());
+            synchronized (this) {
+                ChunkStore.MappedFile shared = memory.putIfAbsent(content, mapped);
+                files.setTier(filename, FileIndex.Tier.MEMORY);
+                if (shared != null) {
+                    // Mapped by a concurrent reader first
+                    released.add(mapped);
+                    return shared.open();
+                }
+                // Opened before evicting, as the policy may turn the new entry away at once
+                SeekableByteChannel result = mapped.open();
+                for (String evicted : memoryPolicy.add(content, size)) {
+                    released.add(memory.remove(evicted));
+                    dropFromMemory(evicted);
+                    memoryEvictions.incrementAndGet();
+                }
+                return result;
+            }
+        } finally {
+            channel.close();
+            // Unmapped once their last reader is done
+            for (ChunkStore.MappedFile mapped : released) {
+                if (mapped != null) {
+                    mapped.release();
+                }
+            }
+        }
+    }
+
+    // Moves the names of evicted contents back to the disk tier; the caller holds the lock
+    private void dropFromMemory(String content) {
+        memoryContents.entrySet().removeIf(entry -> {
+            if (!entry.getValue().equals(content)) {
+                return false;
+            }
+            files.setTier(entry.getKey(), FileIndex.Tier.DISK);
+            return true;
+        });
+    }
+
+    /**
+     * Streams {@code size} bytes from {@code source} into the cache. Only chunks the store does
+     * not hold yet are written, and readers never observe a partially stored file.
+     */
+    public void storeFrom(String filename, ReadableByteChannel source, long size) throws IOException {
+        ChunkStore.Manifest previous = store.manifest(filename);
+        ChunkStore.Manifest manifest = store.store(filename, source, size);
+        if (previous != null && !previous.contentId().equals(manifest.contentId())) {
+            store.remove(deflatedName(previous));
+        }
+        synchronized (this) {
+            // Any mapping this name pointed to holds the previous version
+            memoryContents.remove(filename);
+            // Read back, so concurrent stores of one name leave the index with the last
+            ChunkStore.Manifest current = store.manifest(filename);
+            if (current != null) {
+                files.put(FileIndex.Entry.of(current, FileIndex.Tier.DISK));
+            }
+        }
+        registerOnDisk(filename, size);
+    }
+
+    /**
+     * Drops a file the server has replaced or deleted, along with its deflated copy, so it is no
+     * longer served. Its mapping stays in the memory tier, unreachable by this name, until evicted.
+     */
+    public void remove(String filename) throws IOException {
+        boolean cached;
+        synchronized (this) {
+            cached = diskPolicy.contains(filename);
+            diskPolicy.remove(filename);
+            memoryContents.remove(filename);
+            files.remove(filename);
+        }
+        ChunkStore.Manifest manifest = store.manifest(filename);
+        if (manifest != null) {
+            store.remove(deflatedName(manifest));
+        }
+        store.remove(filename);
+        if (cached) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Adds a deflated copy of a cached file, encoded as {@link CompressedTransport} blocks, if the
+     * file compresses well, so clients that accept compression are served it without compressing
+     * it again. The copy counts against the disk budget along with the file.
+     */
+    public void deflate(String filename) throws IOException {
+        ChunkStore.ChunkChannel source = store.open(filename);
+        if (source == null) {
+            return;
+        }
+        ChunkStore.Manifest manifest = source.manifest();
+        String name = deflatedName(manifest);
+        long deflated;
+        try {
+            if (store.manifest(name) != null) {
+                return;
+            }
+            deflated = storeDeflated(source, manifest.size(), name);
+        } finally {
+            source.close();
+        }
+        if (deflated == 0) {
+            return;
+        }
+        boolean current;
+        synchronized (this) {
+            current = diskPolicy.contains(filename) && store.manifest(filename) == manifest;
+        }
+        if (current) {
+            registerOnDisk(filename, manifest.size() + deflated);
+        } else {
+            // Replaced or evicted while being compressed
+            store.remove(name);
+        }
+    }
+
+    /**
+     * Compresses {@code source} into the store under {@code name} and returns the size of the
+     * copy, or 0 if it does not come out small enough to keep.
+     */
+    private long storeDeflated(ReadableByteChannel source, long size, String name) throws IOException {
+        long limit = (long) (size * MAX_DEFLATED_RATIO);
+        Path temp = Files.createTempFile(cacheDirectory, TEMP_PREFIX, ".tmp");
+        CompressedTransport.Codec codec = new CompressedTransport.Codec();
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            byte[] raw = new byte[CompressedTransport.BLOCK_SIZE];
+            byte[] frame = new byte[CompressedTransport.MAX_FRAME_SIZE];
+            long remaining = size;
+            do {
+                int length = (int) Math.min(raw.length, remaining);
+                ByteBuffer input = ByteBuffer.wrap(raw, 0, length);
+                while (input.hasRemaining()) {
+                    if (source.read(input) < 0) {
+                        throw new EOFException("Cached file shrank while being compressed");
+                    }
+                }
+                remaining -= length;
+                ByteBuffer encoded = ByteBuffer.wrap(frame, 0, codec.encode(raw, length, remaining == 0, frame));
+                while (encoded.hasRemaining()) {
+                    out.write(encoded);
+                }
+                // Give up once the copy can no longer be small enough, or the start of the file
+                // shows that it does not compress
+                long processed = size - remaining;
+                if (out.size() > limit || (processed >= DEFLATE_SAMPLE_SIZE && out.size() > processed * MAX_DEFLATED_RATIO)) {
+                    return 0;
+                }
+            } while (remaining > 0);
+            return store.storeFile(name, temp).size();
+        } finally {
+            codec.close();
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static String deflatedName(ChunkStore.Manifest manifest) {
+        return manifest.name() + DEFLATED_INFIX + manifest.contentId();
+    }
+
+    /**
+     * The stored form of a cached file: its size and checksum without reading it.
+     */
+    public ChunkStore.Manifest manifest(String filename) {
+        return store.manifest(filename);
+    }
+
+    /**
+     * Opens the deflated copy of a cached file, or returns {@code null} if there is none.
+     */
+    public SeekableByteChannel openDeflated(ChunkStore.Manifest manifest) {
+        synchronized (this) {
+            if (!diskPolicy.contains(manifest.name())) {
+                return null;
+            }
+            diskPolicy.recordAccess(manifest.name());
+        }
+        ChunkStore.ChunkChannel channel = store.open(deflatedName(manifest));
+        if (channel != null) {
+            diskHits.incrementAndGet();
+        }
+        return channel;
+    }
+
+    private void registerOnDisk(String filename, long size) throws IOException {
+        List<String> evicted;
+        synchronized (this) {
+            evicted = diskPolicy.add(filename, size);
+            for (String name : evicted) {
+                memoryContents.remove(name);
+                files.remove(name);
+            }
+        }
+        for (String name : evicted) {
+            ChunkStore.Manifest manifest = store.manifest(name);
+            if (manifest != null) {
+                store.remove(deflatedName(manifest));
+            }
+            store.remove(name);
+            diskEvictions.incrementAndGet();
+        }
+    }
+
+    public long memoryHits() {
+        return memoryHits.get();
+    }
+
+    public long diskHits() {
+        return diskHits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long memoryEvictions() {
+        return memoryEvictions.get();
+    }
+
+    public long diskEvictions() {
+        return diskEvictions.get();
+    }
+
+    public long invalidations() {
+        return invalidations.get();
+    }
+
+    public synchronized long memoryBytes() {
+        return memoryPolicy.weightedSize();
+    }
+
+    public synchronized long diskBytes() {
+        return diskPolicy.weightedSize();
     }
 
-    public byte[] getFile(String filename) throws IOException {
-        return Files.readAllBytes(cacheDirectory.resolve(filename));
+    /**
+     * Bytes the disk tier takes after deduplication; {@link #diskBytes} counts every file in full.
+     */
+    public long storedBytes() {
+        return store.storedBytes();
     }
 
-    public void storeFile(String filename, byte[] data) throws IOException {
-        Files.write(cacheDirectory.resolve(filename), data);
+    @Override
+    public String toString() {
+        return String.format("hits=%d (memory=%d, disk=%d) misses=%d evictions=%d (memory=%d, disk=%d) memoryBytes=%d diskBytes=%d storedBytes=%d",
+                memoryHits() + diskHits(), memoryHits(), diskHits(), misses(),
+                memoryEvictions() + diskEvictions(), memoryEvictions(), diskEvictions(), memoryBytes(), diskBytes(), storedBytes());
     }
 }
@@ -0,0 +1,72 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Opcodes and payload encodings for requests between the server and the cache service, carried
+ * over a {@link MuxConnection}.
+ */
+public final class CacheProtocol {
+    // Requests
+    public static final byte GET = 16;        // payload: max body size, filename
+    public static final byte STORE = 17;      // payload: size, filename; body: file contents
+    public static final byte GET_RANGE = 18;  // payload: offset, length, filename
+    public static final byte GET_DEFLATED = 19;  // payload: max body size, filename; answered like GET if there is no deflated copy
+    public static final byte INVALIDATE = 20;  // payload: filename; the server's copy was replaced or removed
+
+    // Responses
+    public static final byte FOUND = 32;      // payload: size, checksum of the whole file; body: file contents or range
+    public static final byte NOT_FOUND = 33;
+    public static final byte STORED = 34;
+    public static final byte ERROR = 35;      // payload: message
+    public static final byte TOO_LARGE = 36;  // payload: size; the file exceeds the requested max body size
+    public static final byte FOUND_DEFLATED = 37;  // payload: size, checksum; body: CompressedTransport blocks
+    public static final byte INVALIDATED = 38;
+
+    private CacheProtocol() {}
+
+    public static byte[] encodeString(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static String decodeString(byte[] payload, int offset) {
+        return new String(payload, offset, payload.length - offset, StandardCharsets.UTF_8);
+    }
+
+    public static byte[] encodeSize(long size) {
+        return ByteBuffer.allocate(8).putLong(size).array();
+    }
+
+    public static long decodeSize(byte[] payload) {
+        return ByteBuffer.wrap(payload).getLong();
+    }
+
+    public static byte[] encodeGet(String filename, long maxBodySize) {
+        return encodeSizeAndName(maxBodySize, filename);
+    }
+
+    public static byte[] encodeGetRange(String filename, long offset, long length) {
+        byte[] name = encodeString(filename);
+        return ByteBuffer.allocate(16 + name.length).putLong(offset).putLong(length).put(name).array();
+    }
+
+    public static byte[] encodeFound(long size, String checksum) {
+        return encodeSizeAndName(size, checksum);
+    }
+
+    /**
+     * The checksum following the size in a FOUND or FOUND_DEFLATED payload, or {@code null} if
+     * there is none.
+     */
+    public static String decodeChecksum(byte[] payload) {
+        return payload.length > 8 ? decodeString(payload, 8) : null;
+    }
+
+    public static byte[] encodeStore(String filename, long size) {
+        return encodeSizeAndName(size, filename);
+    }
+
+    private static byte[] encodeSizeAndName(long size, String filename) {
+        byte[] name = encodeString(filename);
+        return ByteBuffer.allocate(8 + name.length).putLong(size).put(name).array();
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Populates the cache in the background so a GET never waits for a cache store. Fills for a
+ * filename that is already queued or being stored are coalesced, and fills that do not fit in
+ * the bounded queue are dropped; the file will simply be offered again on its next miss. Files
+ * replaced or deleted on the server are dropped from the cache the same way, off the request path.
+ */
+public class CacheWriteBehind implements Closeable {
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+    public static final int DEFAULT_WORKERS = 2;
+
+    /**
+     * Opens the file to store when its fill runs, or returns {@code null} if it is gone.
+     */
+    public interface Source {
+        SeekableByteChannel open() throws IOException;
+    }
+
+    private static class Fill {
+        final String filename;
+        // null for an invalidation
+        final Source file;
+
+        Fill(String filename, Source file) {
+            this.filename = filename;
+            this.file = file;
+        }
+    }
+
+    private final CacheCluster caches;
+    private final BlockingQueue<Fill> queue;
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final Thread[] workers;
+    private volatile boolean running = true;
+
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong invalidated = new AtomicLong();
+
+    public CacheWriteBehind(CacheCluster caches, int queueCapacity, int workerCount) {
+        this.caches = caches;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(this::runWorker, "cache-write-behind-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queues a fill of {@code filename} from {@code file} without blocking. Returns {@code false}
+     * if the fill was dropped because the queue is full.
+     */
+    public boolean submit(String filename, Source file) {
+        if (!pending.add(filename)) {
+            coalesced.incrementAndGet();
+            return true;
+        }
+        if (!queue.offer(new Fill(filename, file))) {
+            pending.remove(filename);
+            dropped.incrementAndGet();
+            Log.warn("Cache fill queue full; skipped storing '" + filename + "' in cache.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Queues the removal of {@code filename} from the cache without blocking. It is never
+     * coalesced with a fill, as a fill already running may be storing the old contents. Returns
+     * {@code false} if it was dropped because the queue is full; the server still notices the
+     * stale copy when it is next served.
+     */
+    public boolean invalidate(String filename) {
+        if (!queue.offer(new Fill(filename, null))) {
+            dropped.incrementAndGet();
+            Log.warn("Cache fill queue full; skipped invalidating '" + filename + "' in cache.");
+            return false;
+        }
+        return true;
+    }
+
+    private void runWorker() {
+        while (running) {
+            Fill fill;
+            try {
+                fill = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (fill.file == null) {
+                remove(fill.filename);
+                continue;
+            }
+            try {
+                store(fill);
+            } finally {
+                pending.remove(fill.filename);
+            }
+        }
+    }
+
+    private void store(Fill fill) {
+        Log.debug("Storing file in cache: " + fill.filename);
+        try (SeekableByteChannel channel = fill.file.open()) {
+            if (channel == null) {
+                return;
+            }
+            if (caches.store(fill.filename, channel)) {
+                stored.incrementAndGet();
+                Log.debug("File '" + fill.filename + "' stored in cache.");
+            } else {
+                failed.incrementAndGet();
+                Log.warn("Failed to store file '" + fill.filename + "' in cache.");
+            }
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            Log.warn("Error communicating with cache service: " + e.getMessage());
+        }
+    }
+
+    private void remove(String filename) {
+        try {
+            if (caches.invalidate(filename)) {
+                invalidated.incrementAndGet();
+                Log.debug("File '" + filename + "' invalidated in cache.");
+            } else {
+                failed.incrementAndGet();
+                Log.warn("Failed to invalidate file '" + filename + "' in cache.");
+            }
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            Log.warn("Error communicating with cache service: " + e.getMessage());
+        }
+    }
+
+    public long coalesced() {
+        return coalesced.get();
+    }
+
+    public long dropped() {
+        return dropped.get();
+    }
+
+    public long stored() {
+        return stored.get();
+    }
+
+    public long failed() {
+        return failed.get();
+    }
+
+    public long invalidated() {
+        return invalidated.get();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+}
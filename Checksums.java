@@ -0,0 +1,132 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.zip.CRC32C;
+
+/**
+ * CRC32C checksums of files, ranges and streamed data, written as 8 hex digits in the
+ * {@code "CRC32C <hex>"} message that follows a file body. The JVM computes CRC32C with the
+ * CPU's CRC instructions, and files are checksummed through memory mappings, so verifying a
+ * transfer costs little next to the transfer itself.
+ */
+public final class Checksums {
+    public static final String PREFIX = "CRC32C ";
+
+    // Files are mapped this much at a time while checksumming
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+    // Channels that cannot be mapped are read this much at a time
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    private Checksums() {}
+
+    public static String crc32c(FileChannel file, long position, long length) throws IOException {
+        CRC32C crc = new CRC32C();
+        long end = position + length;
+        while (position < end) {
+            long window = Math.min(MAP_WINDOW, end - position);
+            MappedByteBuffer mapped = file.map(FileChannel.MapMode.READ_ONLY, position, window);
+            try {
+                crc.update(mapped);
+            } finally {
+                // Released now rather than at the next GC, which may be many windows later
+                Unmapper.unmap(mapped);
+            }
+            position += window;
+        }
+        return format(crc.getValue());
+    }
+
+    /**
+     * Checksums a range of any seekable channel, reading through a buffer where the channel
+     * cannot be mapped. Leaves the channel's position as it was.
+     */
+    public static String crc32c(SeekableByteChannel channel, long position, long length) throws IOException {
+        if (channel instanceof FileChannel) {
+            return crc32c((FileChannel) channel, position, length);
+        }
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        long saved = channel.position();
+        channel.position(position);
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    throw new EOFException("Channel ended " + remaining + " bytes before the range did");
+                }
+                buffer.flip();
+                crc.update(buffer);
+                remaining -= read;
+            }
+        } finally {
+            channel.position(saved);
+        }
+        return format(crc.getValue());
+    }
+
+    public static String crc32c(ByteBuffer data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data.duplicate());
+        return format(crc.getValue());
+    }
+
+    public static String message(String checksum) {
+        return PREFIX + checksum;
+    }
+
+    /**
+     * The checksum in a {@link #message}, or {@code null} if {@code message} is not one.
+     */
+    public static String parse(String message) {
+        return message != null && message.startsWith(PREFIX) ? message.substring(PREFIX.length()) : null;
+    }
+
+    private static String format(long value) {
+        return String.format("%08x", value);
+    }
+
+    /**
+     * Passes reads through while checksumming every byte read.
+     */
+    public static class ChecksumChannel implements ReadableByteChannel {
+        private final ReadableByteChannel source;
+        private final CRC32C crc = new CRC32C();
+
+        public ChecksumChannel(ReadableByteChannel source) {
+            this.source = source;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int start = dst.position();
+            int read = source.read(dst);
+            if (read > 0) {
+                ByteBuffer readBytes = dst.duplicate();
+                readBytes.limit(start + read).position(start);
+                crc.update(readBytes);
+            }
+            return read;
+        }
+
+        public String checksum() {
+            return format(crc.getValue());
+        }
+
+        @Override
+        public boolean isOpen() {
+            return source.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+}
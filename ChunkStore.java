@@ -0,0 +1,943 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+/**
+ * Content-addressed file store. Files are cut into chunks at content-defined boundaries (a gear
+ * rolling hash), every chunk is stored once under its SHA-256, and an index maps each file name
+ * to its list of chunks. Identical files, and files that share runs of content, only take the
+ * space of their unique chunks. Chunks are reference counted, by files and by open readers, and
+ * deleted when nothing uses them.
+ */
+public class ChunkStore {
+    // A boundary falls where the top bits of the rolling hash are zero, 64 KB past the minimum on
+    // average, and never less than MIN_CHUNK_SIZE or more than MAX_CHUNK_SIZE apart
+    static final int MIN_CHUNK_SIZE = 16 * 1024;
+    static final int MAX_CHUNK_SIZE = 256 * 1024;
+    private static final int BOUNDARY_BITS = 16;
+    // The gear hash only depends on the last 64 bytes, so hashing starts just before the minimum
+    private static final int HASH_WINDOW = 64;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6765617243444344L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private static final String TEMP_PREFIX = ".chunk-";
+    // Received chunks no file refers to yet are kept this long for a retried upload to reuse
+    static final long PENDING_GRACE_MILLIS = 10 * 60 * 1000;
+    private static final long SWEEP_INTERVAL_MILLIS = 60 * 1000;
+
+    /**
+     * One chunk of a file: the hex SHA-256 of its contents and its length.
+     */
+    public static final class Chunk {
+        final String hash;
+        final int length;
+
+        Chunk(String hash, int length) {
+            this.hash = hash;
+            this.length = length;
+        }
+
+        public String hash() {
+            return hash;
+        }
+
+        public int length() {
+            return length;
+        }
+    }
+
+    /**
+     * A stored file: its name, size, CRC32C and chunks.
+     */
+    public static final class Manifest {
+        final String name;
+        final long size;
+        final String checksum;
+        final List<Chunk> chunks;
+        final long modified;
+
+        Manifest(String name, long size, String checksum, List<Chunk> chunks, long modified) {
+            this.name = name;
+            this.size = size;
+            this.checksum = checksum;
+            this.chunks = Collections.unmodifiableList(chunks);
+            this.modified = modified;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public String checksum() {
+            return checksum;
+        }
+
+        public List<Chunk> chunks() {
+            return chunks;
+        }
+
+        public long modified() {
+            return modified;
+        }
+
+        /**
+         * Identifies the file's contents: files with the same chunks have the same id.
+         */
+        public String contentId() {
+            MessageDigest digest = sha256();
+            for (Chunk chunk : chunks) {
+                digest.update(chunk.hash.getBytes(StandardCharsets.US_ASCII));
+            }
+            return hex(digest.digest());
+        }
+    }
+
+    /**
+     * Receives each chunk cut by {@link #split}; {@code data} is only valid during the call.
+     */
+    public interface ChunkConsumer {
+        void accept(byte[] data, int length) throws IOException;
+    }
+
+    private final Path chunkDirectory;
+    private final Path indexDirectory;
+    private final Map<String, Manifest> index = new HashMap<>();
+    private final Map<String, Integer> references = new HashMap<>();
+    // Chunks received without a reference, by hash, with when an upload last asked for them
+    private final Map<String, Long> pending = new HashMap<>();
+    private long storedBytes;
+    private long lastSweep = System.currentTimeMillis();
+
+    public ChunkStore(Path root) throws IOException {
+        this.chunkDirectory = Files.createDirectories(root.resolve("chunks"));
+        this.indexDirectory = Files.createDirectories(root.resolve("index"));
+        load();
+    }
+
+    /**
+     * Reads the index and drops chunks that no file refers to, left by interrupted stores.
+     */
+    private void load() throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(indexDirectory)) {
+            for (Path entry : entries) {
+                if (entry.getFileName().toString().startsWith(TEMP_PREFIX)) {
+                    Files.deleteIfExists(entry);
+                    continue;
+                }
+                Manifest manifest = readManifest(entry);
+                index.put(manifest.name, manifest);
+                for (Chunk chunk : manifest.chunks) {
+                    references.merge(chunk.hash, 1, Integer::sum);
+                }
+            }
+        }
+        try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(chunkDirectory)) {
+            for (Path prefix : prefixes) {
+                try (DirectoryStream<Path> chunks = Files.newDirectoryStream(prefix)) {
+                    for (Path chunk : chunks) {
+                        if (references.containsKey(chunk.getFileName().toString())) {
+                            storedBytes += Files.size(chunk);
+                        } else {
+                            Files.delete(chunk);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Cuts {@code size} bytes of {@code source} into content-defined chunks. The same content
+     * always yields the same chunks, wherever it sits in a file.
+     */
+    public static void split(ReadableByteChannel source, long size, ChunkConsumer consumer) throws IOException {
+        // Data is read straight into the chunk buffer; what follows a boundary is moved to the front
+        byte[] chunk = new byte[MAX_CHUNK_SIZE];
+        int filled = 0;
+        int scanned = 0;
+        long hash = 0;
+        long remaining = size;
+        while (remaining > 0 || filled > 0) {
+            if (remaining > 0 && filled < MAX_CHUNK_SIZE) {
+                int read = source.read(ByteBuffer.wrap(chunk, filled, (int) Math.min(MAX_CHUNK_SIZE - filled, remaining)));
+                if (read < 0) {
+                    throw new EOFException("Source ended " + remaining + " bytes before the announced size");
+                }
+                filled += read;
+                remaining -= read;
+            }
+            int boundary = -1;
+            for (int i = Math.max(scanned, MIN_CHUNK_SIZE - HASH_WINDOW); i < filled; i++) {
+                hash = (hash << 1) + GEAR[chunk[i] & 0xff];
+                if (i + 1 >= MIN_CHUNK_SIZE && hash >>> (64 - BOUNDARY_BITS) == 0) {
+                    boundary = i + 1;
+                    break;
+                }
+            }
+            if (boundary < 0) {
+                if (filled < MAX_CHUNK_SIZE && remaining > 0) {
+                    scanned = filled;
+                    continue;
+                }
+                boundary = filled;
+            }
+            consumer.accept(chunk, boundary);
+            System.arraycopy(chunk, boundary, chunk, 0, filled - boundary);
+            filled -= boundary;
+            scanned = 0;
+            hash = 0;
+        }
+    }
+
+    /**
+     * Lists the chunks of {@code size} bytes of {@code source}, without storing them.
+     */
+    public static List<Chunk> chunks(ReadableByteChannel source, long size) throws IOException {
+        MessageDigest digest = sha256();
+        List<Chunk> chunks = new ArrayList<>();
+        split(source, size, (data, length) -> {
+            digest.update(data, 0, length);
+            chunks.add(new Chunk(hex(digest.digest()), length));
+        });
+        return chunks;
+    }
+
+    /**
+     * Stores {@code size} bytes of {@code source} as {@code name}, writing only chunks the store
+     * does not hold yet, and replaces any previous file of that name.
+     */
+    public Manifest store(String name, ReadableByteChannel source, long size) throws IOException {
+        MessageDigest digest = sha256();
+        CRC32C crc = new CRC32C();
+        List<Chunk> chunks = new ArrayList<>();
+        try {
+            split(source, size, (data, length) -> {
+                crc.update(data, 0, length);
+                digest.update(data, 0, length);
+                Chunk chunk = new Chunk(hex(digest.digest()), length);
+                // The reference keeps the chunk from being deleted before the file is committed
+                pin(chunk);
+                chunks.add(chunk);
+                writeChunk(chunk.hash, data, length);
+            });
+        } catch (IOException | RuntimeException e) {
+            release(chunks);
+            throw e;
+        }
+        return commit(name, size, String.format("%08x", crc.getValue()), chunks);
+    }
+
+    public Manifest storeFile(String name, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return store(name, channel, channel.size());
+        }
+    }
+
+    /**
+     * Stores one chunk received from elsewhere, after checking it against its hash. Until a file
+     * refers to it, the chunk is pending and deleted once no upload has asked for it for
+     * {@link #PENDING_GRACE_MILLIS}.
+     */
+    public void storeChunk(Chunk chunk, byte[] data, int length) throws IOException {
+        MessageDigest digest = sha256();
+        digest.update(data, 0, length);
+        if (length != chunk.length || !hex(digest.digest()).equals(chunk.hash)) {
+            throw new IOException("Chunk " + chunk.hash + " does not match its hash");
+        }
+        synchronized (this) {
+            if (!references.containsKey(chunk.hash)) {
+                pending.put(chunk.hash, System.currentTimeMillis());
+            }
+        }
+        writeChunk(chunk.hash, data, length);
+    }
+
+    /**
+     * The chunks of {@code chunks} that are not in the store. Pending chunks among them are kept
+     * for another grace period, as the upload that asks will refer to them.
+     */
+    public List<Integer> missing(List<Chunk> chunks) {
+        List<Integer> missing = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now - lastSweep >= SWEEP_INTERVAL_MILLIS) {
+                sweep(now - PENDING_GRACE_MILLIS);
+                lastSweep = now;
+            }
+            for (int i = 0; i < chunks.size(); i++) {
+                String hash = chunks.get(i).hash;
+                if (!Files.exists(chunkPath(hash))) {
+                    missing.add(i);
+                } else if (pending.containsKey(hash)) {
+                    pending.put(hash, now);
+                }
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Deletes pending chunks that no upload has asked for since {@code before}.
+     */
+    private synchronized void sweep(long before) {
+        for (Iterator<Map.Entry<String, Long>> entries = pending.entrySet().iterator(); entries.hasNext(); ) {
+            Map.Entry<String, Long> entry = entries.next();
+            if (entry.getValue() >= before) {
+                continue;
+            }
+            entries.remove();
+            Path path = chunkPath(entry.getKey());
+            try {
+                long length = Files.size(path);
+                Files.delete(path);
+                storedBytes -= length;
+            } catch (NoSuchFileException e) {
+                // Never written, as the upload failed before the chunk was complete
+            } catch (IOException e) {
+                Log.error("Error deleting chunk " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stores {@code name} as a file made of chunks that are all in the store already, once
+     * their contents add up to {@code size} bytes with the CRC32C {@code checksum}.
+     */
+    public Manifest storeChunks(String name, long size, String checksum, List<Chunk> chunks) throws IOException {
+        synchronized (this) {
+            for (int i = 0; i < chunks.size(); i++) {
+                Chunk chunk = chunks.get(i);
+                if (!Files.exists(chunkPath(chunk.hash))) {
+                    release(chunks.subList(0, i));
+                    throw new IOException("Chunk " + chunk.hash + " was removed from the store; try again");
+                }
+                pin(chunk);
+            }
+        }
+        try {
+            CRC32C crc = new CRC32C();
+            // Chunks are small, so one buffer read into serves better than a mapping per chunk
+            ByteBuffer buffer = ByteBuffer.allocate(MAX_CHUNK_SIZE);
+            long total = 0;
+            for (Chunk chunk : chunks) {
+                try (FileChannel file = FileChannel.open(chunkPath(chunk.hash), StandardOpenOption.READ)) {
+                    buffer.clear();
+                    while (file.read(buffer) >= 0 && buffer.hasRemaining()) {
+                        // Read the whole chunk
+                    }
+                    buffer.flip();
+                    crc.update(buffer);
+                }
+                total += chunk.length;
+            }
+            if (total != size || !String.format("%08x", crc.getValue()).equals(checksum)) {
+                throw new IOException("Chunks do not match the announced size and checksum");
+            }
+        } catch (IOException | RuntimeException e) {
+            release(chunks);
+            throw e;
+        }
+        return commit(name, size, checksum, chunks);
+    }
+
+    /**
+     * A channel that stores the bytes written to it as the given chunks, one after another,
+     * checking each against its hash. Chunks completed before a failure stay in the store, so
+     * a retried transfer need not send them again.
+     */
+    public WritableByteChannel chunkWriter(List<Chunk> chunks) {
+        return new WritableByteChannel() {
+            private final byte[] data = new byte[MAX_CHUNK_SIZE];
+            private int index;
+            private int length;
+            private boolean open = true;
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                int written = 0;
+                while (src.hasRemaining()) {
+                    if (index == chunks.size()) {
+                        throw new IOException("More data than the announced chunks");
+                    }
+                    Chunk chunk = chunks.get(index);
+                    int count = Math.min(src.remaining(), chunk.length - length);
+                    src.get(data, length, count);
+                    length += count;
+                    written += count;
+                    if (length == chunk.length) {
+                        storeChunk(chunk, data, length);
+                        index++;
+                        length = 0;
+                    }
+                }
+                return written;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() {
+                open = false;
+            }
+        };
+    }
+
+    /**
+     * Writes a chunk list in the form {@link #readChunks} reads, for manifests and transfers.
+     */
+    public static void writeChunks(DataOutputStream out, List<Chunk> chunks) throws IOException {
+        out.writeInt(chunks.size());
+        for (Chunk chunk : chunks) {
+            out.writeUTF(chunk.hash);
+            out.writeInt(chunk.length);
+        }
+    }
+
+    public static List<Chunk> readChunks(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Malformed chunk list");
+        }
+        List<Chunk> chunks = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            String hash = in.readUTF();
+            int length = in.readInt();
+            if (!hash.matches("[0-9a-f]{64}") || length <= 0 || length > MAX_CHUNK_SIZE) {
+                throw new IOException("Malformed chunk list");
+            }
+            chunks.add(new Chunk(hash, length));
+        }
+        return chunks;
+    }
+
+    private Manifest commit(String name, long size, String checksum, List<Chunk> chunks) throws IOException {
+        Manifest manifest = new Manifest(name, size, checksum, chunks, System.currentTimeMillis());
+        Manifest previous;
+        synchronized (this) {
+            try {
+                writeManifest(manifest);
+            } catch (IOException e) {
+                release(chunks);
+                throw e;
+            }
+            previous = index.put(name, manifest);
+        }
+        if (previous != null) {
+            release(previous.chunks);
+        }
+        return manifest;
+    }
+
+    public synchronized Manifest manifest(String name) {
+        return index.get(name);
+    }
+
+    public synchronized List<Manifest> manifests() {
+        return new ArrayList<>(index.values());
+    }
+
+    /**
+     * Opens a stored file for reading, or returns {@code null} if there is none. Its chunks
+     * stay on disk until the channel is closed, even if the file is replaced or removed.
+     */
+    public ChunkChannel open(String name) {
+        Manifest manifest;
+        synchronized (this) {
+            manifest = index.get(name);
+            if (manifest == null) {
+                return null;
+            }
+            for (Chunk chunk : manifest.chunks) {
+                pin(chunk);
+            }
+        }
+        return new ChunkChannel(manifest);
+    }
+
+    /**
+     * Maps the chunks of a stored file into memory. The chunks stay on disk, even if the file is
+     * replaced or removed, until the mapping is released; the caller must hold them already,
+     * e.g. through an open {@link ChunkChannel} of the file.
+     */
+    public MappedFile map(Manifest manifest) throws IOException {
+        synchronized (this) {
+            for (Chunk chunk : manifest.chunks) {
+                pin(chunk);
+            }
+        }
+        ByteBuffer[] buffers = new ByteBuffer[manifest.chunks.size()];
+        try {
+            for (int i = 0; i < buffers.length; i++) {
+                Chunk chunk = manifest.chunks.get(i);
+                try (FileChannel file = FileChannel.open(chunkPath(chunk.hash), StandardOpenOption.READ)) {
+                    buffers[i] = file.map(FileChannel.MapMode.READ_ONLY, 0, chunk.length);
+                }
+            }
+        } catch (IOException e) {
+            Unmapper.unmap(buffers);
+            release(manifest.chunks);
+            throw e;
+        }
+        return new MappedFile(manifest, buffers);
+    }
+
+    public boolean remove(String name) throws IOException {
+        Manifest manifest;
+        synchronized (this) {
+            manifest = index.remove(name);
+            if (manifest == null) {
+                return false;
+            }
+            Files.deleteIfExists(indexPath(name));
+        }
+        release(manifest.chunks);
+        return true;
+    }
+
+    /**
+     * Bytes of chunk data on disk, which is what the stored files take after deduplication.
+     */
+    public synchronized long storedBytes() {
+        return storedBytes;
+    }
+
+    private synchronized void pin(Chunk chunk) {
+        references.merge(chunk.hash, 1, Integer::sum);
+        pending.remove(chunk.hash);
+    }
+
+    private synchronized void release(List<Chunk> chunks) {
+        for (Chunk chunk : chunks) {
+            Integer count = references.get(chunk.hash);
+            if (count == null) {
+                continue;
+            }
+            if (count > 1) {
+                references.put(chunk.hash, count - 1);
+                continue;
+            }
+            references.remove(chunk.hash);
+            try {
+                if (Files.deleteIfExists(chunkPath(chunk.hash))) {
+                    storedBytes -= chunk.length;
+                }
+            } catch (IOException e) {
+                Log.error("Error deleting chunk " + chunk.hash + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void writeChunk(String hash, byte[] data, int length) throws IOException {
+        Path path = chunkPath(hash);
+        if (Files.exists(path)) {
+            return;
+        }
+        Path directory = Files.createDirectories(path.getParent());
+        Path temp = Files.createTempFile(directory, TEMP_PREFIX, ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+            // Checked again under the lock, as another writer may have stored the same chunk
+            synchronized (this) {
+                if (!Files.exists(path)) {
+                    Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+                    storedBytes += length;
+                }
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private Path chunkPath(String hash) {
+        return chunkDirectory.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private Path indexPath(String name) {
+        MessageDigest digest = sha256();
+        return indexDirectory.resolve(hex(digest.digest(name.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    private void writeManifest(Manifest manifest) throws IOException {
+        Path temp = Files.createTempFile(indexDirectory, TEMP_PREFIX, ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temp))) {
+                out.writeUTF(manifest.name);
+                out.writeLong(manifest.size);
+                out.writeUTF(manifest.checksum);
+                out.writeLong(manifest.modified);
+                writeChunks(out, manifest.chunks);
+            }
+            Files.move(temp, indexPath(manifest.name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static Manifest readManifest(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            String name = in.readUTF();
+            long size = in.readLong();
+            String checksum = in.readUTF();
+            long modified = in.readLong();
+            return new Manifest(name, size, checksum, readChunks(in), modified);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static long[] offsets(Manifest manifest) {
+        long[] offsets = new long[manifest.chunks.size()];
+        long offset = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = offset;
+            offset += manifest.chunks.get(i).length;
+        }
+        return offsets;
+    }
+
+    private static int chunkAt(long[] offsets, long offset) {
+        int index = Arrays.binarySearch(offsets, offset);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    /**
+     * Read-only channel over the chunks of a stored file. Senders that recognise it send each
+     * chunk with {@link FileChannel#transferTo}, so stored files keep the zero-copy path.
+     */
+    public final class ChunkChannel implements SeekableByteChannel, Transport.DirectSource {
+        private final Manifest manifest;
+        private final long[] offsets;
+        private long position;
+        private boolean open = true;
+        private int currentIndex = -1;
+        private FileChannel current;
+
+        ChunkChannel(Manifest manifest) {
+            this.manifest = manifest;
+            this.offsets = offsets(manifest);
+        }
+
+        public Manifest manifest() {
+            return manifest;
+        }
+
+        private FileChannel chunk(int index) throws IOException {
+            if (index != currentIndex) {
+                if (current != null) {
+                    current.close();
+                    current = null;
+                }
+                try {
+                    current = FileChannel.open(chunkPath(manifest.chunks.get(index).hash), StandardOpenOption.READ);
+                } catch (NoSuchFileException e) {
+                    throw new IOException("Chunk missing from store: " + manifest.chunks.get(index).hash, e);
+                }
+                currentIndex = index;
+            }
+            return current;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            checkOpen();
+            if (position >= manifest.size) {
+                return -1;
+            }
+            int index = chunkAt(offsets, position);
+            long within = position - offsets[index];
+            long available = manifest.chunks.get(index).length - within;
+            int limit = dst.limit();
+            if (dst.remaining() > available) {
+                dst.limit(dst.position() + (int) available);
+            }
+            int read;
+            try {
+                read = chunk(index).read(dst, within);
+            } finally {
+                dst.limit(limit);
+            }
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        /**
+         * Transfers up to {@code count} bytes from {@code start} with {@link FileChannel#transferTo},
+         * chunk by chunk. Does not move the position.
+         */
+        public long transferTo(long start, long count, WritableByteChannel target) throws IOException {
+            checkOpen();
+            long end = Math.min(manifest.size, start + count);
+            long offset = start;
+            while (offset < end) {
+                int index = chunkAt(offsets, offset);
+                long within = offset - offsets[index];
+                long length = Math.min(manifest.chunks.get(index).length - within, end - offset);
+                long transferred = chunk(index).transferTo(within, length, target);
+                if (transferred <= 0) {
+                    break;
+                }
+                offset += transferred;
+            }
+            return offset - start;
+        }
+
+        @Override
+        public void transferTo(long count, WritableByteChannel target) throws IOException {
+            long start = position();
+            if (transferTo(start, count, target) < count) {
+                throw new EOFException("Stored file ended before the announced size");
+            }
+            position(start + count);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() throws IOException {
+            checkOpen();
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            checkOpen();
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            checkOpen();
+            return manifest.size;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!open) {
+                return;
+            }
+            open = false;
+            if (current != null) {
+                current.close();
+            }
+            release(manifest.chunks);
+        }
+
+        private void checkOpen() throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+        }
+    }
+
+    /**
+     * A stored file with its chunks mapped into memory, shared by all of its readers. Like the
+     * chunks, it is reference counted: one reference for its owner and one per open
+     * {@link MappedChannel}. It is unmapped and its chunks are released when the last goes, so
+     * releasing it never pulls pages from under a reader.
+     */
+    public final class MappedFile {
+        private final Manifest manifest;
+        private final ByteBuffer[] chunks;
+        private final long[] offsets;
+        private int references = 1;
+
+        MappedFile(Manifest manifest, ByteBuffer[] chunks) {
+            this.manifest = manifest;
+            this.chunks = chunks;
+            this.offsets = offsets(manifest);
+        }
+
+        public Manifest manifest() {
+            return manifest;
+        }
+
+        /**
+         * Opens a channel over the mapping, or returns {@code null} once it has been released.
+         */
+        public synchronized MappedChannel open() {
+            if (references == 0) {
+                return null;
+            }
+            references++;
+            return new MappedChannel(this);
+        }
+
+        public void release() {
+            synchronized (this) {
+                if (references == 0 || --references > 0) {
+                    return;
+                }
+            }
+            Unmapper.unmap(chunks);
+            ChunkStore.this.release(manifest.chunks);
+        }
+    }
+
+    /**
+     * Read-only channel over a {@link MappedFile}. Senders that recognise it write
+     * {@link #slice} views of the mapping straight to the socket.
+     */
+    public static final class MappedChannel implements SeekableByteChannel {
+        private final MappedFile file;
+        private long position;
+        private boolean open = true;
+
+        MappedChannel(MappedFile file) {
+            this.file = file;
+        }
+
+        public Manifest manifest() {
+            return file.manifest;
+        }
+
+        /**
+         * Returns a view of up to {@code length} bytes from the position, within one chunk, and
+         * advances past them. The view is only valid until the channel is closed.
+         */
+        public ByteBuffer slice(int length) throws IOException {
+            checkOpen();
+            if (position >= file.manifest.size) {
+                return ByteBuffer.allocate(0);
+            }
+            int index = chunkAt(file.offsets, position);
+            ByteBuffer slice = file.chunks[index].duplicate();
+            slice.position((int) (position - file.offsets[index]));
+            slice.limit(slice.position() + Math.min(length, slice.remaining()));
+            position += slice.remaining();
+            return slice;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (position() >= file.manifest.size) {
+                return -1;
+            }
+            ByteBuffer slice = slice(dst.remaining());
+            int length = slice.remaining();
+            dst.put(slice);
+            return length;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() throws IOException {
+            checkOpen();
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            checkOpen();
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            checkOpen();
+            return file.manifest.size;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            if (open) {
+                open = false;
+                file.release();
+            }
+        }
+
+        private void checkOpen() throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+        }
+    }
+}
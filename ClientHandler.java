@@ -1,59 +1,181 @@
 import java.io.*;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
 
-public class ClientHandler implements Runnable {
-    private final Socket socket;
+/**
+ * Serves one long-lived server connection. Frames are read on the core worker that serves this
+ * connection and every request is processed on the executor, so many GET and STORE operations
+ * can be in flight on the same connection.
+ */
+public class ClientHandler implements ServerCore.Connection {
+    private static final Metrics.Histogram GET_LATENCY = Metrics.histogram("cache_get", "Time to answer a GET from the server");
+    private static final Metrics.Histogram STORE_LATENCY = Metrics.histogram("cache_store", "Time to store a file sent by the server");
+    private static final Metrics.Meter BYTES_SENT = Metrics.meter("cache_bytes_sent", "File bytes sent to the server");
+    private static final Metrics.Meter BYTES_RECEIVED = Metrics.meter("cache_bytes_received", "File bytes stored for the server");
+
+    private final SocketChannel socket;
     private final CacheManager cacheManager;
+    private final ExecutorService executor;
 
-    public ClientHandler(Socket socket, CacheManager cacheManager) {
+    public ClientHandler(SocketChannel socket, CacheManager cacheManager, ExecutorService executor) {
         this.socket = socket;
         this.cacheManager = cacheManager;
+        this.executor = executor;
+    }
+
+    /**
+     * Reads frames until the server closes the connection. The connection is busy for its whole
+     * life, so it is never parked between requests.
+     */
+    @Override
+    public boolean serve() {
+        try (MuxConnection connection = new MuxConnection(socket, this::dispatch)) {
+            socket.socket().setTcpNoDelay(true);
+            connection.readLoop();
+        } catch (IOException e) {
+            Log.error("Error handling client request: " + e.getMessage());
+        }
+        return false;
+    }
+
+    @Override
+    public boolean hasBufferedInput() {
+        return false;
     }
 
     @Override
-    public void run() {
-        try (
-                DataInputStream dataIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-                DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
-        ) {
-            String command = dataIn.readUTF();
-            if (command.startsWith("GET ")) {
-                handleGet(command.substring(4).trim(), dataOut);
-            } else if (command.startsWith("STORE ")) {
-                handleStore(command.substring(6).trim(), dataIn, dataOut);
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private void dispatch(MuxConnection connection, MuxConnection.Frame request) {
+        executor.execute(() -> handle(connection, request));
+    }
+
+    private void handle(MuxConnection connection, MuxConnection.Frame request) {
+        long started = System.nanoTime();
+        try {
+            if (request.opcode == CacheProtocol.GET) {
+                handleGet(CacheProtocol.decodeString(request.payload, 8), connection, request);
+                GET_LATENCY.recordSince(started);
+            } else if (request.opcode == CacheProtocol.GET_DEFLATED) {
+                handleGetDeflated(CacheProtocol.decodeString(request.payload, 8), connection, request);
+                GET_LATENCY.recordSince(started);
+            } else if (request.opcode == CacheProtocol.GET_RANGE) {
+                handleGetRange(CacheProtocol.decodeString(request.payload, 16), connection, request);
+                GET_LATENCY.recordSince(started);
+            } else if (request.opcode == CacheProtocol.STORE) {
+                handleStore(CacheProtocol.decodeString(request.payload, 8), connection, request);
+            } else if (request.opcode == CacheProtocol.INVALIDATE) {
+                cacheManager.remove(CacheProtocol.decodeString(request.payload, 0));
+                connection.reply(request, CacheProtocol.INVALIDATED, new byte[0], null, 0);
             } else {
-                dataOut.writeUTF("INVALID_COMMAND");
-                dataOut.flush();
-                System.err.println("Received invalid command.");
+                connection.reply(request, CacheProtocol.ERROR, CacheProtocol.encodeString("INVALID_COMMAND"), null, 0);
+                Log.warn("Received invalid command: " + request.opcode);
             }
         } catch (IOException e) {
-            System.err.println("Error handling client request.");
+            Log.error("Error handling client request: " + e.getMessage());
         } finally {
-            try {
-                socket.close();
-            } catch (IOException ignored) {}
+            if (request.body != null) {
+                request.body.close();
+            }
         }
     }
 
-    private void handleGet(String filename, DataOutputStream dataOut) throws IOException {
-        if (cacheManager.contains(filename)) {
-            dataOut.writeUTF("FOUND");
-            byte[] data = cacheManager.getFile(filename);
-            dataOut.writeInt(data.length);
-            dataOut.write(data);
-            dataOut.flush();
+    private void handleGet(String filename, MuxConnection connection, MuxConnection.Frame request) throws IOException {
+        SeekableByteChannel channel = cacheManager.openFile(filename);
+        if (channel != null) {
+            try {
+                long size = channel.size();
+                if (size > CacheProtocol.decodeSize(request.payload)) {
+                    connection.reply(request, CacheProtocol.TOO_LARGE, CacheProtocol.encodeSize(size), null, 0);
+                    return;
+                }
+                connection.reply(request, CacheProtocol.FOUND, CacheProtocol.encodeFound(size, checksum(channel)), channel, size);
+                BYTES_SENT.add(size);
+            } finally {
+                channel.close();
+            }
         } else {
-            dataOut.writeUTF("NOT_FOUND");
-            dataOut.flush();
+            connection.reply(request, CacheProtocol.NOT_FOUND, new byte[0], null, 0);
         }
     }
 
-    private void handleStore(String filename, DataInputStream dataIn, DataOutputStream dataOut) throws IOException {
-        int size = dataIn.readInt();
-        byte[] data = new byte[size];
-        dataIn.readFully(data);
-        cacheManager.storeFile(filename, data);
-        dataOut.writeUTF("STORED");
-        dataOut.flush();
+    /**
+     * Sends the deflated copy of a cached file as it is stored, along with the size and checksum
+     * of the file itself. Without a deflated copy the file is sent as for a GET.
+     */
+    private void handleGetDeflated(String filename, MuxConnection connection, MuxConnection.Frame request) throws IOException {
+        ChunkStore.Manifest manifest = cacheManager.manifest(filename);
+        SeekableByteChannel blocks = manifest != null ? cacheManager.openDeflated(manifest) : null;
+        if (blocks == null) {
+            handleGet(filename, connection, request);
+            return;
+        }
+        try {
+            connection.reply(request, CacheProtocol.FOUND_DEFLATED,
+                    CacheProtocol.encodeFound(manifest.size(), manifest.checksum()), blocks, blocks.size());
+            BYTES_SENT.add(blocks.size());
+        } finally {
+            blocks.close();
+        }
+    }
+
+    /**
+     * Sends part of a cached file. A range past the end of the file is answered as a miss.
+     */
+    private void handleGetRange(String filename, MuxConnection connection, MuxConnection.Frame request) throws IOException {
+        ByteBuffer range = ByteBuffer.wrap(request.payload);
+        long offset = range.getLong();
+        long length = range.getLong();
+        SeekableByteChannel channel = cacheManager.openFile(filename);
+        if (channel == null) {
+            connection.reply(request, CacheProtocol.NOT_FOUND, new byte[0], null, 0);
+            return;
+        }
+        try {
+            if (offset < 0 || length < 0 || offset + length > channel.size()) {
+                connection.reply(request, CacheProtocol.NOT_FOUND, new byte[0], null, 0);
+                return;
+            }
+            channel.position(offset);
+            connection.reply(request, CacheProtocol.FOUND, CacheProtocol.encodeFound(length, checksum(channel)), channel, length);
+            BYTES_SENT.add(length);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * The checksum of the whole cached file, sent with every hit so the server can tell whether
+     * the copy is still current.
+     */
+    private static String checksum(SeekableByteChannel channel) {
+        if (channel instanceof ChunkStore.MappedChannel) {
+            return ((ChunkStore.MappedChannel) channel).manifest().checksum();
+        }
+        return ((ChunkStore.ChunkChannel) channel).manifest().checksum();
+    }
+
+    private void handleStore(String filename, MuxConnection connection, MuxConnection.Frame request) throws IOException {
+        long started = System.nanoTime();
+        long size = CacheProtocol.decodeSize(request.payload);
+        try {
+            cacheManager.storeFrom(filename, request.body, size);
+        } catch (IOException e) {
+            connection.reply(request, CacheProtocol.ERROR, CacheProtocol.encodeString(String.valueOf(e.getMessage())), null, 0);
+            throw e;
+        }
+        connection.reply(request, CacheProtocol.STORED, new byte[0], null, 0);
+        STORE_LATENCY.recordSince(started);
+        BYTES_RECEIVED.add(size);
+        // Compressed after the reply, so the server is not kept waiting
+        try {
+            cacheManager.deflate(filename);
+        } catch (IOException e) {
+            Log.error("Error compressing cached file '" + filename + "': " + e.getMessage());
+        }
     }
 }
@@ -0,0 +1,327 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Transport decorator that deflates file bodies once both ends have agreed to it. A body goes
+ * out as a series of blocks, each one body on the underlying transport; blocks that do not
+ * shrink are sent as they are, and after such a block the next few are not even tried, so
+ * incompressible files cost little CPU. Messages are passed through unchanged, and until
+ * compression is enabled so are bodies, keeping the underlying transport's zero-copy paths.
+ */
+public class CompressedTransport implements Transport {
+    public static final String DEFLATE = "deflate";
+    public static final String NONE = "none";
+
+    static final int BLOCK_SIZE = 256 * 1024;
+    // Block header: flags, raw length, payload length
+    static final int HEADER_SIZE = 9;
+    static final int MAX_FRAME_SIZE = HEADER_SIZE + BLOCK_SIZE;
+    private static final byte FLAG_DEFLATED = 1;
+    private static final byte FLAG_LAST = 2;
+
+    /**
+     * Encodes and decodes blocks. A series of blocks is also the form in which the cache keeps
+     * compressed files, so they can be sent without compressing them again.
+     */
+    static class Codec {
+        // A block must shrink by at least 1/MIN_SAVING of its size to be sent deflated
+        private static final int MIN_SAVING = 32;
+        private static final int MAX_SKIPPED_BLOCKS = 64;
+
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final Inflater inflater = new Inflater();
+        private int skip;
+        private int skipped;
+        private boolean last;
+
+        /**
+         * Starts a new series of blocks.
+         */
+        void reset() {
+            skip = 0;
+            skipped = 0;
+        }
+
+        /**
+         * Encodes {@code length} bytes of {@code raw} as one block in {@code frame}, which holds
+         * {@link #MAX_FRAME_SIZE} bytes, and returns the block's size.
+         */
+        int encode(byte[] raw, int length, boolean last, byte[] frame) {
+            int payload = -1;
+            if (skipped < skip) {
+                skipped++;
+            } else {
+                deflater.reset();
+                deflater.setInput(raw, 0, length);
+                deflater.finish();
+                int limit = length - length / MIN_SAVING;
+                int written = 0;
+                while (!deflater.finished() && written < limit) {
+                    written += deflater.deflate(frame, HEADER_SIZE + written, limit - written);
+                }
+                if (deflater.finished() && written < limit) {
+                    payload = written;
+                    skip = 0;
+                } else {
+                    // Back off exponentially while the data keeps not compressing
+                    skip = Math.min(MAX_SKIPPED_BLOCKS, Math.max(1, skip * 2));
+                }
+                skipped = 0;
+            }
+            byte flags = last ? FLAG_LAST : 0;
+            if (payload >= 0) {
+                flags |= FLAG_DEFLATED;
+            } else {
+                System.arraycopy(raw, 0, frame, HEADER_SIZE, length);
+                payload = length;
+            }
+            ByteBuffer.wrap(frame, 0, HEADER_SIZE).put(flags).putInt(length).putInt(payload);
+            return HEADER_SIZE + payload;
+        }
+
+        /**
+         * Decodes the block in the first {@code frameLength} bytes of {@code frame} into
+         * {@code raw}, which holds {@link #BLOCK_SIZE} bytes, and returns the decoded length.
+         */
+        int decode(byte[] frame, int frameLength, byte[] raw) throws IOException {
+            ByteBuffer header = ByteBuffer.wrap(frame, 0, frameLength);
+            if (frameLength < HEADER_SIZE) {
+                throw new IOException("Truncated compressed block");
+            }
+            byte flags = header.get();
+            int length = header.getInt();
+            int payload = header.getInt();
+            if (length < 0 || length > BLOCK_SIZE || payload != frameLength - HEADER_SIZE) {
+                throw new IOException("Malformed compressed block");
+            }
+            last = (flags & FLAG_LAST) != 0;
+            if ((flags & FLAG_DEFLATED) == 0) {
+                if (payload != length) {
+                    throw new IOException("Malformed compressed block");
+                }
+                System.arraycopy(frame, HEADER_SIZE, raw, 0, length);
+                return length;
+            }
+            inflater.reset();
+            inflater.setInput(frame, HEADER_SIZE, payload);
+            try {
+                int inflated = 0;
+                while (inflated < length && !inflater.finished()) {
+                    int count = inflater.inflate(raw, inflated, length - inflated);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    inflated += count;
+                }
+                if (inflated != length || !inflater.finished()) {
+                    throw new IOException("Compressed block does not match its length");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed block: " + e.getMessage(), e);
+            }
+            return length;
+        }
+
+        /**
+         * Whether the block decoded last was the final one of its series.
+         */
+        boolean last() {
+            return last;
+        }
+
+        /**
+         * Reads one block from {@code source} into {@code frame}, returning its size, or -1 at
+         * the end of the source.
+         */
+        static int readFrame(ReadableByteChannel source, byte[] frame) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(frame, 0, HEADER_SIZE);
+            readFully(source, buffer, true);
+            if (buffer.position() == 0) {
+                return -1;
+            }
+            int payload = ByteBuffer.wrap(frame, 5, 4).getInt();
+            if (payload < 0 || payload > BLOCK_SIZE) {
+                throw new IOException("Malformed compressed block");
+            }
+            readFully(source, ByteBuffer.wrap(frame, HEADER_SIZE, payload), false);
+            return HEADER_SIZE + payload;
+        }
+
+        void close() {
+            deflater.end();
+            inflater.end();
+        }
+    }
+
+    private final Transport transport;
+    private final Codec codec = new Codec();
+    // Separate buffers for each direction, so one thread can send while another receives
+    private byte[] sendRaw;
+    private byte[] sendBlock;
+    private byte[] receiveRaw;
+    private byte[] receiveBlock;
+    private volatile boolean enabled;
+
+    public CompressedTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Turns compression of bodies on or off; both ends must switch at the same point.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Transport transport() {
+        return transport;
+    }
+
+    @Override
+    public void send(String message) throws IOException {
+        transport.send(message);
+    }
+
+    @Override
+    public String receive() throws IOException {
+        return transport.receive();
+    }
+
+    @Override
+    public void sendFrom(ReadableByteChannel source, long size) throws IOException {
+        if (!enabled) {
+            transport.sendFrom(source, size);
+            return;
+        }
+        allocateSend();
+        codec.reset();
+        long remaining = size;
+        do {
+            int length = (int) Math.min(BLOCK_SIZE, remaining);
+            readFully(source, ByteBuffer.wrap(sendRaw, 0, length), false);
+            remaining -= length;
+            sendFrame(codec.encode(sendRaw, length, remaining == 0, sendBlock));
+        } while (remaining > 0);
+    }
+
+    /**
+     * Sends a body already encoded as blocks, as kept by the cache, without recompressing it.
+     */
+    public void sendEncoded(ReadableByteChannel blocks) throws IOException {
+        sendEncoded(null, blocks);
+    }
+
+    /**
+     * Like {@link #sendEncoded(ReadableByteChannel)}, but the body starts with {@code prefix},
+     * such as the header of a frame whose data the blocks are, encoded as a block of its own.
+     */
+    public void sendEncoded(ByteBuffer prefix, ReadableByteChannel blocks) throws IOException {
+        if (!enabled) {
+            throw new IllegalStateException("Compression is not enabled");
+        }
+        allocateSend();
+        if (prefix != null && prefix.hasRemaining()) {
+            int length = prefix.remaining();
+            if (length > BLOCK_SIZE) {
+                throw new IllegalArgumentException("Prefix larger than a block");
+            }
+            prefix.get(sendRaw, 0, length);
+            codec.reset();
+            sendFrame(codec.encode(sendRaw, length, false, sendBlock));
+        }
+        int length;
+        boolean last = false;
+        while (!last && (length = Codec.readFrame(blocks, sendBlock)) >= 0) {
+            last = (sendBlock[0] & FLAG_LAST) != 0;
+            sendFrame(length);
+        }
+        if (!last) {
+            throw new EOFException("Compressed body ended without its last block");
+        }
+    }
+
+    private void sendFrame(int length) throws IOException {
+        transport.sendFrom(new ByteBufferChannel(ByteBuffer.wrap(sendBlock, 0, length)), length);
+    }
+
+    @Override
+    public long receiveTo(WritableByteChannel sink) throws IOException {
+        if (!enabled) {
+            return transport.receiveTo(sink);
+        }
+        allocateReceive();
+        long total = 0;
+        do {
+            ByteBuffer buffer = ByteBuffer.wrap(receiveBlock);
+            long length = transport.receiveTo(new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    if (src.remaining() > buffer.remaining()) {
+                        throw new IOException("Compressed block larger than " + MAX_FRAME_SIZE + " bytes");
+                    }
+                    int count = src.remaining();
+                    buffer.put(src);
+                    return count;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+            int decoded = codec.decode(receiveBlock, (int) length, receiveRaw);
+            ByteBuffer data = ByteBuffer.wrap(receiveRaw, 0, decoded);
+            while (data.hasRemaining()) {
+                sink.write(data);
+            }
+            total += decoded;
+        } while (!codec.last());
+        return total;
+    }
+
+    private void allocateSend() {
+        if (sendRaw == null) {
+            sendRaw = new byte[BLOCK_SIZE];
+            sendBlock = new byte[MAX_FRAME_SIZE];
+        }
+    }
+
+    private void allocateReceive() {
+        if (receiveRaw == null) {
+            receiveRaw = new byte[BLOCK_SIZE];
+            receiveBlock = new byte[MAX_FRAME_SIZE];
+        }
+    }
+
+    private static void readFully(ReadableByteChannel source, ByteBuffer buffer, boolean endAllowed) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer) < 0) {
+                if (endAllowed && buffer.position() == start) {
+                    return;
+                }
+                throw new EOFException("Source ended before the announced size");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        codec.close();
+        transport.close();
+    }
+}
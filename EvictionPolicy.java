@@ -0,0 +1,36 @@
+import java.util.List;
+
+/**
+ * Decides which entries of a size-bounded cache tier to drop. Entries are weighted by their size
+ * in bytes. Implementations are not thread-safe; callers serialize access.
+ */
+public interface EvictionPolicy {
+    /**
+     * Records a lookup of {@code key}, whether or not the tier holds it.
+     */
+    void recordAccess(String key);
+
+    /**
+     * Adds or replaces an entry and returns the keys that must be dropped to stay within
+     * capacity. The returned list may contain {@code key} itself if it was not admitted.
+     */
+    List<String> add(String key, long weight);
+
+    void remove(String key);
+
+    boolean contains(String key);
+
+    long weightedSize();
+
+    static EvictionPolicy create(String name, long capacity) {
+        switch (name.toLowerCase()) {
+            case "lru":
+                return new LruPolicy(capacity);
+            case "tinylfu":
+            case "w-tinylfu":
+                return new TinyLfuPolicy(capacity);
+            default:
+                throw new IllegalArgumentException("Unknown eviction policy: " + name);
+        }
+    }
+}
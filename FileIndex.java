@@ -0,0 +1,126 @@
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of the files a server or cache holds, with the size, modification time,
+ * checksum and tier of each. Lookups, including those for files that are not there, need no
+ * file system calls. Safe for concurrent use without locking; the owner keeps it up to date as
+ * files are stored, replaced and removed.
+ */
+public class FileIndex {
+    /**
+     * Where a file is kept: in the cache's memory tier, in a chunk store, or as a plain file put
+     * into the server's directory by hand.
+     */
+    public enum Tier { MEMORY, DISK, PLAIN }
+
+    public static final class Entry {
+        private final String name;
+        private final long size;
+        private final long modified;
+        private final String checksum;
+        private final Tier tier;
+
+        public Entry(String name, long size, long modified, String checksum, Tier tier) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+            this.checksum = checksum;
+            this.tier = tier;
+        }
+
+        public static Entry of(ChunkStore.Manifest manifest, Tier tier) {
+            return new Entry(manifest.name(), manifest.size(), manifest.modified(), manifest.checksum(), tier);
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        /**
+         * Modification time in milliseconds since the epoch.
+         */
+        public long modified() {
+            return modified;
+        }
+
+        /**
+         * The CRC32C of the file, or {@code null} if it has not been computed yet.
+         */
+        public String checksum() {
+            return checksum;
+        }
+
+        public Tier tier() {
+            return tier;
+        }
+
+        public Entry withChecksum(String checksum) {
+            return new Entry(name, size, modified, checksum, tier);
+        }
+
+        public Entry withTier(Tier tier) {
+            return new Entry(name, size, modified, checksum, tier);
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    public boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    public void put(Entry entry) {
+        entries.put(entry.name(), entry);
+    }
+
+    /**
+     * Adds an entry unless the file is indexed already.
+     */
+    public boolean putIfAbsent(Entry entry) {
+        return entries.putIfAbsent(entry.name(), entry) == null;
+    }
+
+    /**
+     * Replaces the entry of a file only if it is still {@code expected}, so a stale update never
+     * overwrites a newer one.
+     */
+    public boolean replace(Entry expected, Entry entry) {
+        return entries.replace(expected.name(), expected, entry);
+    }
+
+    public void remove(String name) {
+        entries.remove(name);
+    }
+
+    /**
+     * Removes the entry of a file only if it is still {@code expected}.
+     */
+    public boolean remove(Entry expected) {
+        return entries.remove(expected.name(), expected);
+    }
+
+    /**
+     * Moves a file to another tier, if it is indexed.
+     */
+    public void setTier(String name, Tier tier) {
+        entries.computeIfPresent(name, (key, entry) -> entry.tier() == tier ? entry : entry.withTier(tier));
+    }
+
+    public Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * Count-min sketch of 4-bit counters. Every counter is halved once the number of recorded
+ * accesses reaches ten times the width, so old popularity fades. Not thread-safe.
+ */
+public class FrequencySketch {
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+    private static final int MAX_COUNT = 15;
+
+    private final byte[] counters;
+    private final int mask;
+    private final int resetThreshold;
+    private int additions;
+
+    public FrequencySketch(int width) {
+        int size = Integer.highestOneBit(width - 1) << 1;
+        this.counters = new byte[size];
+        this.mask = size - 1;
+        this.resetThreshold = size * 10;
+    }
+
+    public void increment(String key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int seed : SEEDS) {
+            int index = indexOf(hash, seed);
+            if (counters[index] < MAX_COUNT) {
+                counters[index]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= resetThreshold) {
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] >>= 1;
+            }
+            additions /= 2;
+        }
+    }
+
+    public int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int seed : SEEDS) {
+            frequency = Math.min(frequency, counters[indexOf(hash, seed)]);
+        }
+        return frequency;
+    }
+
+    private int indexOf(int hash, int seed) {
+        int h = (hash ^ seed) * 0x45D9F3B;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x7FEB352D;
+        return hash ^ (hash >>> 15);
+    }
+}
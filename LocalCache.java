@@ -0,0 +1,151 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The client's own cache of downloaded files: a {@link CacheManager} with a memory and a disk
+ * tier in {@code client_cache}, which keeps each file even if its copy in {@code client_files}
+ * is changed or deleted. A file the server confirmed as current less than {@link #FRESH_MILLIS}
+ * ago is served without asking the server at all; after that, its checksum makes the next GET
+ * conditional, so an unchanged file costs one exchange without data. Not thread-safe.
+ */
+public class LocalCache {
+    public static final long FRESH_MILLIS = 5000;
+
+    /**
+     * A copy written to {@code client_files}, recognised by its size and modification time so it
+     * is not read again to find its checksum.
+     */
+    private static class Copy {
+        final String checksum;
+        final long size;
+        final long modified;
+
+        Copy(String checksum, long size, long modified) {
+            this.checksum = checksum;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    private final CacheManager files;
+    // When the server last confirmed each cached file as current
+    private final Map<String, Long> validated = new HashMap<>();
+    private final Map<String, Copy> copies = new HashMap<>();
+
+    /**
+     * @param capacity bytes the disk tier may take; the memory tier takes an eighth of that
+     */
+    public LocalCache(Path directory, long capacity) throws IOException {
+        this.files = new CacheManager(directory.toString(), CacheManager.DEFAULT_POLICY, capacity / 8, capacity);
+    }
+
+    /**
+     * The checksum of the cached version of a file, or {@code null} if it is not cached.
+     */
+    public String checksum(String name) {
+        FileIndex.Entry entry = files.lookup(name);
+        return entry != null ? entry.checksum() : null;
+    }
+
+    /**
+     * Whether the server confirmed the cached version of a file recently enough to use it
+     * without asking again.
+     */
+    public boolean isFresh(String name) {
+        Long time = validated.get(name);
+        return time != null && System.currentTimeMillis() - time < FRESH_MILLIS && files.contains(name);
+    }
+
+    /**
+     * Records that the server has just confirmed the cached version of a file.
+     */
+    public void validated(String name) {
+        validated.put(name, System.currentTimeMillis());
+    }
+
+    /**
+     * Keeps the verified download in {@code file} as the current version of {@code name}.
+     */
+    public void put(String name, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            files.storeFrom(name, channel, channel.size());
+        }
+        remember(name, file);
+        validated(name);
+    }
+
+    /**
+     * Writes the cached version of {@code name} to {@code destination} by way of
+     * {@code partial}, unless the destination still holds the copy written last. Returns
+     * {@code false} if the file is no longer cached.
+     */
+    public boolean restore(String name, Path partial, Path destination) throws IOException {
+        String checksum = checksum(name);
+        if (checksum == null) {
+            return false;
+        }
+        Copy copy = copies.get(name);
+        if (copy != null && checksum.equals(copy.checksum) && matches(copy, destination)) {
+            return true;
+        }
+        try (SeekableByteChannel source = files.openFile(name)) {
+            if (source == null) {
+                return false;
+            }
+            long size = source.size();
+            boolean verified;
+            try (FileChannel target = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (long copied = 0; copied < size; ) {
+                    long transferred = target.transferFrom(source, copied, size - copied);
+                    if (transferred <= 0) {
+                        throw new EOFException("Cached file '" + name + "' ended early");
+                    }
+                    copied += transferred;
+                }
+                verified = Checksums.crc32c(target, 0, size).equals(checksum);
+            }
+            if (!verified) {
+                Files.delete(partial);
+                remove(name);
+                return false;
+            }
+        }
+        Files.move(partial, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        remember(name, destination);
+        return true;
+    }
+
+    /**
+     * Forgets a file, e.g. because this client is uploading a new version of it.
+     */
+    public void remove(String name) throws IOException {
+        files.remove(name);
+        validated.remove(name);
+        copies.remove(name);
+    }
+
+    private void remember(String name, Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        copies.put(name, new Copy(checksum(name), attributes.size(), attributes.lastModifiedTime().toMillis()));
+    }
+
+    private static boolean matches(Copy copy, Path file) throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.size() == copy.size && attributes.lastModifiedTime().toMillis() == copy.modified;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+import java.io.PrintStream;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Leveled logging for the server and cache that keeps console I/O off request threads: a call
+ * only queues the message, and a daemon thread writes it out. The level is set with
+ * {@code -Dtransporter.log=debug|info|warn|error} (default {@code info}); per-request messages
+ * are logged at {@code debug}. When the queue is full, messages are dropped and counted rather
+ * than making the caller wait.
+ */
+public final class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+    private static final Level LEVEL = level(System.getProperty("transporter.log", "info"));
+    private static final BlockingQueue<Entry> QUEUE = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final Metrics.Counter DROPPED =
+            Metrics.counter("log_dropped", "Log messages dropped because the log queue was full");
+
+    static {
+        Thread writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // Messages still queued at exit are written before the process ends
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {}
+
+    private static class Entry {
+        final LocalDateTime time = LocalDateTime.now();
+        final Level level;
+        final String message;
+
+        Entry(Level level, String message) {
+            this.level = level;
+            this.message = message;
+        }
+    }
+
+    private static Level level(String name) {
+        try {
+            return Level.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    public static void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    private static void log(Level level, String message) {
+        if (isEnabled(level) && !QUEUE.offer(new Entry(level, message))) {
+            DROPPED.increment();
+        }
+    }
+
+    private static void writeLoop() {
+        try {
+            while (true) {
+                write(QUEUE.take());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void flush() {
+        Entry entry;
+        while ((entry = QUEUE.poll()) != null) {
+            write(entry);
+        }
+    }
+
+    private static synchronized void write(Entry entry) {
+        PrintStream out = entry.level.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+        out.println(TIME.format(entry.time) + " " + String.format("%-5s", entry.level) + " " + entry.message);
+    }
+}
@@ -0,0 +1,57 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evicts the least recently used entries first.
+ */
+public class LruPolicy implements EvictionPolicy {
+    private final long capacity;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weightedSize;
+
+    public LruPolicy(long capacity) {
+        this.capacity = capacity;
+    }
+
+    @Override
+    public void recordAccess(String key) {
+        entries.get(key);
+    }
+
+    @Override
+    public List<String> add(String key, long weight) {
+        Long previous = entries.put(key, weight);
+        weightedSize += weight - (previous != null ? previous : 0);
+
+        List<String> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        while (weightedSize > capacity && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            weightedSize -= entry.getValue();
+            evicted.add(entry.getKey());
+            eldest.remove();
+        }
+        return evicted;
+    }
+
+    @Override
+    public void remove(String key) {
+        Long weight = entries.remove(key);
+        if (weight != null) {
+            weightedSize -= weight;
+        }
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    @Override
+    public long weightedSize() {
+        return weightedSize;
+    }
+}
@@ -0,0 +1,428 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Counters, rates and latency histograms of this process, cheap enough to update on every
+ * request: updates are a few uncontended atomic adds and never take a lock. They are published
+ * as the JMX MBean {@code TransPorter:type=Metrics} and, when a port is given, in the Prometheus
+ * text format on {@code http://127.0.0.1:<port>/metrics}.
+ */
+public final class Metrics {
+    private static final Map<String, Metric> METRICS = new ConcurrentSkipListMap<>();
+    private static final int RATE_INTERVAL_SECONDS = 5;
+    private static ScheduledExecutorService ticker;
+    private static HttpServer endpoint;
+
+    private Metrics() {}
+
+    private interface Metric {
+        String help();
+
+        void scrape(String name, StringBuilder out);
+
+        void attributes(String name, Map<String, Object> out);
+    }
+
+    /**
+     * A count that only goes up.
+     */
+    public static final class Counter implements Metric {
+        private final String help;
+        private final LongAdder count = new LongAdder();
+
+        Counter(String help) {
+            this.help = help;
+        }
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long amount) {
+            count.add(amount);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        @Override
+        public String help() {
+            return help;
+        }
+
+        @Override
+        public void scrape(String name, StringBuilder out) {
+            line(out, name + "_total", get());
+        }
+
+        @Override
+        public void attributes(String name, Map<String, Object> out) {
+            out.put(name, get());
+        }
+    }
+
+    /**
+     * A counter that also tracks how fast it grows, as a one-minute moving average per second.
+     */
+    public static final class Meter implements Metric {
+        private static final double ALPHA = 1 - Math.exp(-RATE_INTERVAL_SECONDS / 60.0);
+
+        private final String help;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder uncounted = new LongAdder();
+        private volatile double rate;
+        private boolean ticked;
+
+        Meter(String help) {
+            this.help = help;
+        }
+
+        public void add(long amount) {
+            count.add(amount);
+            uncounted.add(amount);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        public double perSecond() {
+            return rate;
+        }
+
+        synchronized void tick() {
+            double current = uncounted.sumThenReset() / (double) RATE_INTERVAL_SECONDS;
+            rate = ticked ? rate + ALPHA * (current - rate) : current;
+            ticked = true;
+        }
+
+        @Override
+        public String help() {
+            return help;
+        }
+
+        @Override
+        public void scrape(String name, StringBuilder out) {
+            line(out, name + "_total", get());
+            line(out, name + "_per_second", perSecond());
+        }
+
+        @Override
+        public void attributes(String name, Map<String, Object> out) {
+            out.put(name, get());
+            out.put(name + "PerSecond", perSecond());
+        }
+    }
+
+    private static final class Gauge implements Metric {
+        private final String help;
+        private final DoubleSupplier value;
+
+        Gauge(String help, DoubleSupplier value) {
+            this.help = help;
+            this.value = value;
+        }
+
+        @Override
+        public String help() {
+            return help;
+        }
+
+        @Override
+        public void scrape(String name, StringBuilder out) {
+            line(out, name, value.getAsDouble());
+        }
+
+        @Override
+        public void attributes(String name, Map<String, Object> out) {
+            out.put(name, value.getAsDouble());
+        }
+    }
+
+    /**
+     * Latencies in nanoseconds, in the layout of HdrHistogram: each power of two is split into
+     * 32 linear buckets, so any value is known to within about 3% from one fixed array of
+     * counters. Values of more than 2^40 ns (18 minutes) are counted in the last bucket.
+     */
+    public static final class Histogram implements Metric {
+        private static final int SUB_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int MAX_EXPONENT = 40;
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+        private static final String[] QUANTILE_NAMES = {"P50", "P90", "P99", "P999"};
+
+        private final String help;
+        private final AtomicLongArray buckets = new AtomicLongArray((MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(String help) {
+            this.help = help;
+        }
+
+        /**
+         * Records the time since {@code startNanos}, a value of {@link System#nanoTime()}.
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets.incrementAndGet(index(value));
+            count.increment();
+            sum.add(value);
+            long previous = max.get();
+            while (value > previous && !max.compareAndSet(previous, value)) {
+                previous = max.get();
+            }
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+            int sub = (int) (Math.min(value, (1L << (MAX_EXPONENT + 1)) - 1) >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        // The largest value that falls in a bucket
+        private static long highestValue(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+            long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+            return ((sub + 1) << (exponent - SUB_BITS)) - 1;
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        /**
+         * The value at or below which {@code quantile} of the recorded values lie, in nanoseconds.
+         */
+        public long valueAt(double quantile) {
+            long total = 0;
+            long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        @Override
+        public String help() {
+            return help;
+        }
+
+        @Override
+        public void scrape(String name, StringBuilder out) {
+            for (double quantile : QUANTILES) {
+                line(out, name + "_seconds{quantile=\"" + quantile + "\"}", valueAt(quantile) / 1e9);
+            }
+            line(out, name + "_seconds_max", max.get() / 1e9);
+            line(out, name + "_seconds_sum", sum.sum() / 1e9);
+            line(out, name + "_seconds_count", count());
+        }
+
+        @Override
+        public void attributes(String name, Map<String, Object> out) {
+            long n = count();
+            out.put(name + "Count", n);
+            out.put(name + "MeanMillis", n == 0 ? 0.0 : sum.sum() / 1e6 / n);
+            for (int i = 0; i < QUANTILES.length; i++) {
+                out.put(name + QUANTILE_NAMES[i] + "Millis", valueAt(QUANTILES[i]) / 1e6);
+            }
+            out.put(name + "MaxMillis", max.get() / 1e6);
+        }
+    }
+
+    public static Counter counter(String name, String help) {
+        return (Counter) METRICS.computeIfAbsent(name, key -> new Counter(help));
+    }
+
+    public static Histogram histogram(String name, String help) {
+        return (Histogram) METRICS.computeIfAbsent(name, key -> new Histogram(help));
+    }
+
+    public static synchronized Meter meter(String name, String help) {
+        Meter meter = (Meter) METRICS.computeIfAbsent(name, key -> new Meter(help));
+        if (ticker == null) {
+            ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-rates");
+                thread.setDaemon(true);
+                return thread;
+            });
+            ticker.scheduleAtFixedRate(Metrics::tick, RATE_INTERVAL_SECONDS, RATE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+        return meter;
+    }
+
+    /**
+     * Registers a value that is read whenever the metrics are; a later gauge of the same name
+     * replaces it.
+     */
+    public static void gauge(String name, String help, DoubleSupplier value) {
+        METRICS.put(name, new Gauge(help, value));
+    }
+
+    private static void tick() {
+        for (Metric metric : METRICS.values()) {
+            if (metric instanceof Meter) {
+                ((Meter) metric).tick();
+            }
+        }
+    }
+
+    /**
+     * Every metric in the Prometheus text exposition format.
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Metric> entry : METRICS.entrySet()) {
+            String name = "transporter_" + entry.getKey();
+            out.append("# HELP ").append(name).append(' ').append(entry.getValue().help()).append('\n');
+            entry.getValue().scrape(name, out);
+        }
+        return out.toString();
+    }
+
+    private static void line(StringBuilder out, String name, double value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void line(StringBuilder out, String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Publishes the metrics over JMX and, if {@code port} is not 0, on a loopback HTTP endpoint.
+     * Calling it again does nothing, so a server and cache in one process share the endpoint.
+     */
+    public static synchronized void publish(int port) throws IOException {
+        try {
+            ObjectName name = new ObjectName("TransPorter:type=Metrics");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(), name);
+            }
+        } catch (JMException e) {
+            throw new IOException("Cannot register metrics MBean: " + e.getMessage(), e);
+        }
+        if (port == 0 || endpoint != null) {
+            return;
+        }
+        endpoint = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        endpoint.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        endpoint.start();
+    }
+
+    // Every counter, rate, gauge and histogram summary as a read-only attribute
+    private static final class MetricsBean implements DynamicMBean {
+        private Map<String, Object> values() {
+            Map<String, Object> values = new ConcurrentSkipListMap<>();
+            for (Map.Entry<String, Metric> entry : METRICS.entrySet()) {
+                entry.getValue().attributes(entry.getKey(), values);
+            }
+            return values;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = values().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Object> values = values();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : values().entrySet()) {
+                attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                        entry.getKey(), true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "TransPorter metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0],
+                    new MBeanNotificationInfo[0]);
+        }
+    }
+}
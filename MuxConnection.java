@@ -0,0 +1,499 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single TCP connection carrying many concurrent requests. Every frame is tagged with a request
+ * ID and file bodies are split into DATA frames, so a large transfer interleaves with other
+ * requests instead of blocking them. Each body is flow controlled with per-stream credits, which
+ * keeps the shared reader from ever waiting on a slow consumer.
+ *
+ * Frame layout: opcode (1 byte), flags (1 byte), request ID (4 bytes), payload length (8 bytes),
+ * payload.
+ */
+public class MuxConnection implements Closeable {
+    public static final int HEADER_SIZE = 14;
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    // Stream control opcodes; application opcodes start at 16
+    public static final byte DATA = 0;
+    public static final byte CREDIT = 1;
+    public static final byte CANCEL = 2;
+
+    public static final byte FLAG_BODY = 1; // DATA frames for this request ID follow
+    public static final byte FLAG_END = 2;  // last DATA frame of a body
+
+    private static final int STREAM_WINDOW = 16; // DATA frames in flight per body
+    // A sender waiting this long for credit takes the receiver as stalled and cancels the body
+    private static final long CREDIT_TIMEOUT_MILLIS = 60000;
+
+    public interface RequestHandler {
+        /**
+         * Called on the reader thread for every frame that does not answer one of our own
+         * requests. Implementations must hand real work off to another thread.
+         */
+        void handle(MuxConnection connection, Frame request);
+    }
+
+    public static class Frame {
+        public final byte opcode;
+        public final byte flags;
+        public final int requestId;
+        public final byte[] payload;
+        public final InboundStream body;
+
+        Frame(byte opcode, byte flags, int requestId, byte[] payload, InboundStream body) {
+            this.opcode = opcode;
+            this.flags = flags;
+            this.requestId = requestId;
+            this.payload = payload;
+            this.body = body;
+        }
+    }
+
+    private final SocketChannel channel;
+    private final RequestHandler handler;
+    private final Object writeLock = new Object();
+    private final ByteBuffer writeHeader = ByteBuffer.allocate(HEADER_SIZE);
+    private final ByteBuffer readHeader = ByteBuffer.allocate(HEADER_SIZE);
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final Map<Integer, CompletableFuture<Frame>> pending = new ConcurrentHashMap<>();
+    private final Map<Integer, InboundStream> inbound = new ConcurrentHashMap<>();
+    private final Map<Integer, OutboundStream> outbound = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * @param handler receives incoming requests, or {@code null} for a connection that only
+     *                issues requests
+     */
+    public MuxConnection(SocketChannel channel, RequestHandler handler) {
+        this.channel = channel;
+        this.handler = handler;
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Number of requests and bodies currently using this connection.
+     */
+    public int activeRequests() {
+        return pending.size() + inbound.size() + outbound.size();
+    }
+
+    /**
+     * Sends a request, optionally followed by a body of {@code bodySize} bytes, and waits for
+     * the response frame. If the response carries a body the caller must close it.
+     */
+    public Frame call(byte opcode, byte[] payload, ReadableByteChannel body, long bodySize, long timeoutMillis)
+            throws IOException {
+        int requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<Frame> response = new CompletableFuture<>();
+        pending.put(requestId, response);
+        try {
+            send(opcode, requestId, payload, body, bodySize);
+            return response.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for response");
+        } catch (ExecutionException e) {
+            throw new IOException("Connection failed: " + e.getCause().getMessage(), e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("No response within " + timeoutMillis + " ms");
+        } finally {
+            pending.remove(requestId);
+        }
+    }
+
+    /**
+     * Answers {@code request}, optionally followed by a body of {@code bodySize} bytes.
+     */
+    public void reply(Frame request, byte opcode, byte[] payload, ReadableByteChannel body, long bodySize)
+            throws IOException {
+        send(opcode, request.requestId, payload, body, bodySize);
+    }
+
+    private void send(byte opcode, int requestId, byte[] payload, ReadableByteChannel body, long bodySize)
+            throws IOException {
+        if (body == null) {
+            writeFrame(opcode, (byte) 0, requestId, payload);
+            return;
+        }
+        OutboundStream stream = new OutboundStream();
+        outbound.put(requestId, stream);
+        try {
+            writeFrame(opcode, FLAG_BODY, requestId, payload);
+            sendBody(requestId, stream, body, bodySize);
+        } catch (SocketTimeoutException e) {
+            // Frames end on boundaries, so the receiver can still be told the body ends here
+            try {
+                writeFrame(CANCEL, (byte) 0, requestId, new byte[0]);
+            } catch (IOException ignored) {}
+            throw e;
+        } finally {
+            outbound.remove(requestId);
+        }
+    }
+
+    private void sendBody(int requestId, OutboundStream stream, ReadableByteChannel source, long size)
+            throws IOException {
+        FileChannel file = source instanceof FileChannel ? (FileChannel) source : null;
+        ByteBufferChannel memory = source instanceof ByteBufferChannel ? (ByteBufferChannel) source : null;
+        ChunkStore.ChunkChannel stored = source instanceof ChunkStore.ChunkChannel ? (ChunkStore.ChunkChannel) source : null;
+        ChunkStore.MappedChannel mapped = source instanceof ChunkStore.MappedChannel ? (ChunkStore.MappedChannel) source : null;
+        ByteBuffer chunk = file == null && memory == null && stored == null && mapped == null
+                ? ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, size)) : null;
+        long position = file != null ? file.position() : stored != null ? stored.position() : 0;
+        long remaining = size;
+        do {
+            int length = (int) Math.min(CHUNK_SIZE, remaining);
+            byte flags = remaining == length ? FLAG_END : 0;
+            stream.acquire();
+            if (file != null) {
+                synchronized (writeLock) {
+                    writeHeader(DATA, flags, requestId, length);
+                    // Zero-copy: the chunk goes from the page cache to the socket with sendfile
+                    long end = position + length;
+                    while (position < end) {
+                        long transferred = file.transferTo(position, end - position, channel);
+                        if (transferred <= 0 && position >= file.size()) {
+                            throw new EOFException("File ended before the announced size");
+                        }
+                        position += transferred;
+                    }
+                }
+            } else if (stored != null) {
+                synchronized (writeLock) {
+                    writeHeader(DATA, flags, requestId, length);
+                    // Deduplicated files are sent chunk file by chunk file, still with sendfile
+                    if (stored.transferTo(position, length, channel) < length) {
+                        throw new EOFException("Stored file ended before the announced size");
+                    }
+                    position += length;
+                }
+            } else if (mapped != null) {
+                // Mapped files are written from views of the mapping, a frame spanning chunks in parts
+                synchronized (writeLock) {
+                    writeHeader(DATA, flags, requestId, length);
+                    int written = 0;
+                    while (written < length) {
+                        ByteBuffer slice = mapped.slice(length - written);
+                        if (!slice.hasRemaining()) {
+                            throw new EOFException("Mapped file ended before the announced size");
+                        }
+                        written += slice.remaining();
+                        writeFully(slice);
+                    }
+                }
+            } else if (memory != null) {
+                // In-memory bodies are written from views of the buffer without copying
+                ByteBuffer slice = memory.slice(length);
+                if (slice.remaining() < length) {
+                    throw new EOFException("Buffer ended before the announced size");
+                }
+                synchronized (writeLock) {
+                    writeHeader(DATA, flags, requestId, length);
+                    writeFully(slice);
+                }
+            } else {
+                // Read outside the write lock so a slow source never stalls other requests
+                chunk.clear();
+                chunk.limit(length);
+                while (chunk.hasRemaining()) {
+                    if (source.read(chunk) < 0) {
+                        throw new EOFException("Source ended before the announced size");
+                    }
+                }
+                chunk.flip();
+                synchronized (writeLock) {
+                    writeHeader(DATA, flags, requestId, length);
+                    writeFully(chunk);
+                }
+            }
+            remaining -= length;
+        } while (remaining > 0);
+        if (file != null) {
+            file.position(position);
+        } else if (stored != null) {
+            stored.position(position);
+        }
+    }
+
+    private void writeFrame(byte opcode, byte flags, int requestId, byte[] payload) throws IOException {
+        synchronized (writeLock) {
+            writeHeader(opcode, flags, requestId, payload.length);
+            writeFully(ByteBuffer.wrap(payload));
+        }
+    }
+
+    private void writeHeader(byte opcode, byte flags, int requestId, long length) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        writeHeader.clear();
+        writeHeader.put(opcode).put(flags).putInt(requestId).putLong(length);
+        writeHeader.flip();
+        writeFully(writeHeader);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads and dispatches frames until the connection closes. Connections that issue requests
+     * run this on a dedicated thread; serving connections run it on their handler thread.
+     */
+    public void readLoop() throws IOException {
+        try {
+            while (true) {
+                readHeader.clear();
+                if (!readFully(readHeader)) {
+                    return;
+                }
+                readHeader.flip();
+                byte opcode = readHeader.get();
+                byte flags = readHeader.get();
+                int requestId = readHeader.getInt();
+                long length = readHeader.getLong();
+                if (length < 0 || length > CHUNK_SIZE) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                byte[] payload = new byte[(int) length];
+                if (!readFully(ByteBuffer.wrap(payload))) {
+                    throw new EOFException("Connection closed in the middle of a frame");
+                }
+                dispatch(opcode, flags, requestId, payload);
+            }
+        } catch (IOException e) {
+            if (closed) {
+                return;
+            }
+            throw e;
+        } finally {
+            close();
+        }
+    }
+
+    private boolean readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (buffer.position() == 0) {
+                    return false;
+                }
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+        }
+        return true;
+    }
+
+    private void dispatch(byte opcode, byte flags, int requestId, byte[] payload) {
+        switch (opcode) {
+            case DATA: {
+                InboundStream stream = inbound.get(requestId);
+                if (stream != null) {
+                    stream.offer(payload, (flags & FLAG_END) != 0);
+                }
+                break;
+            }
+            case CREDIT: {
+                OutboundStream stream = outbound.get(requestId);
+                if (stream != null) {
+                    stream.grant(ByteBuffer.wrap(payload).getInt());
+                }
+                break;
+            }
+            case CANCEL: {
+                // Sent by the receiver of a body to stop it, or by its sender giving up on it
+                OutboundStream stream = outbound.get(requestId);
+                if (stream != null) {
+                    stream.cancel();
+                }
+                InboundStream body = inbound.remove(requestId);
+                if (body != null) {
+                    body.fail("Body cancelled by sender");
+                }
+                break;
+            }
+            default: {
+                InboundStream body = null;
+                if ((flags & FLAG_BODY) != 0) {
+                    body = new InboundStream(requestId);
+                    inbound.put(requestId, body);
+                }
+                Frame frame = new Frame(opcode, flags, requestId, payload, body);
+                CompletableFuture<Frame> waiter = pending.remove(requestId);
+                if (waiter != null) {
+                    waiter.complete(frame);
+                } else if (handler != null) {
+                    handler.handle(this, frame);
+                } else if (body != null) {
+                    body.close();
+                }
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+        IOException failure = new IOException("Connection closed");
+        for (CompletableFuture<Frame> waiter : pending.values()) {
+            waiter.completeExceptionally(failure);
+        }
+        for (InboundStream stream : inbound.values()) {
+            stream.fail("Connection closed before end of body");
+        }
+        for (OutboundStream stream : outbound.values()) {
+            stream.cancel();
+        }
+    }
+
+    private static class OutboundStream {
+        private final Semaphore credits = new Semaphore(STREAM_WINDOW);
+        private volatile boolean cancelled;
+
+        void acquire() throws IOException {
+            try {
+                if (!credits.tryAcquire(CREDIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    throw new SocketTimeoutException("No stream credit within " + CREDIT_TIMEOUT_MILLIS + " ms");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for stream credit");
+            }
+            if (cancelled) {
+                throw new IOException("Stream cancelled by peer");
+            }
+        }
+
+        void grant(int count) {
+            credits.release(count);
+        }
+
+        void cancel() {
+            cancelled = true;
+            credits.release(STREAM_WINDOW);
+        }
+    }
+
+    /**
+     * The receiving end of a body. DATA frames are queued by the reader thread and consumed by
+     * whoever reads this channel; credits are returned as the queue drains.
+     */
+    public class InboundStream implements ReadableByteChannel {
+        private final byte[] end = new byte[0];
+        private final byte[] failed = new byte[0];
+        private final BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+        private final int requestId;
+        private byte[] current;
+        private int offset;
+        private int consumed;
+        private boolean finished;
+        private volatile String failure;
+        private volatile boolean open = true;
+
+        InboundStream(int requestId) {
+            this.requestId = requestId;
+        }
+
+        void offer(byte[] payload, boolean last) {
+            if (payload.length > 0) {
+                chunks.add(payload);
+            }
+            if (last) {
+                inbound.remove(requestId);
+                chunks.add(end);
+            }
+        }
+
+        void fail(String reason) {
+            failure = reason;
+            chunks.add(failed);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            while (current == null || offset == current.length) {
+                if (finished) {
+                    return -1;
+                }
+                byte[] next;
+                try {
+                    next = chunks.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for data");
+                }
+                if (next == end) {
+                    finished = true;
+                    return -1;
+                }
+                if (next == failed) {
+                    throw new EOFException(failure);
+                }
+                current = next;
+                offset = 0;
+                if (++consumed >= STREAM_WINDOW / 2) {
+                    writeFrame(CREDIT, (byte) 0, requestId, ByteBuffer.allocate(4).putInt(consumed).array());
+                    consumed = 0;
+                }
+            }
+            int length = Math.min(dst.remaining(), current.length - offset);
+            dst.put(current, offset, length);
+            offset += length;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        /**
+         * Closing before the end of the body tells the sender to stop.
+         */
+        @Override
+        public void close() {
+            if (!open) {
+                return;
+            }
+            open = false;
+            if (!finished && inbound.remove(requestId) != null) {
+                try {
+                    writeFrame(CANCEL, (byte) 0, requestId, new byte[0]);
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accepts TCP connections and runs their handlers with a bounded number of threads.
+ *
+ * In {@code selector} mode a single event loop owns every idle connection. A connection is only
+ * given a worker from a fixed pool while it has a request to serve, and is parked back on the
+ * selector afterwards, so thousands of idle clients cost no threads. In {@code virtual} mode
+ * (Java 21+) each connection gets its own virtual thread.
+ *
+ * Either way at most {@code maxConnections} are open at once. At the limit the core stops
+ * accepting and new clients wait in the listen backlog until a connection closes.
+ */
+public class ServerCore implements Closeable {
+    public static final String SELECTOR = "selector";
+    public static final String VIRTUAL = "virtual";
+
+    public static final int DEFAULT_WORKERS = Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+    public static final int DEFAULT_MAX_CONNECTIONS = 1024;
+    public static final int DEFAULT_BACKLOG = 128;
+
+    public interface ConnectionHandler {
+        /**
+         * Creates the state for a newly accepted connection.
+         */
+        Connection open(SocketChannel channel) throws IOException;
+    }
+
+    public interface Connection extends Closeable {
+        /**
+         * Serves at least one request with the channel in blocking mode. Returns {@code false}
+         * once the connection is finished and should be closed.
+         */
+        boolean serve() throws IOException;
+
+        /**
+         * Whether input has already been read into a buffer, in which case the connection is
+         * served again immediately because the selector would not report it as readable.
+         */
+        boolean hasBufferedInput();
+    }
+
+    private final String name;
+    private final int port;
+    private final String mode;
+    private final int maxConnections;
+    private final int backlog;
+    private final ConnectionHandler handler;
+    private final ExecutorService workers;
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicLong acceptedConnections = new AtomicLong();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private SelectionKey acceptKey;
+
+    public ServerCore(String name, int port, String mode, int workerCount, int maxConnections, int backlog,
+                      ConnectionHandler handler) {
+        this.name = name;
+        this.port = port;
+        this.mode = mode.toLowerCase();
+        this.maxConnections = maxConnections;
+        this.backlog = backlog;
+        this.handler = handler;
+        this.workers = newWorkerPool(this.mode, workerCount, name);
+    }
+
+    /**
+     * Executor matching a core mode: a fixed pool of platform threads for {@code selector}, a
+     * virtual thread per task for {@code virtual}.
+     */
+    public static ExecutorService newWorkerPool(String mode, int workerCount, String name) {
+        switch (mode.toLowerCase()) {
+            case SELECTOR:
+                AtomicInteger threadNumber = new AtomicInteger();
+                return new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<>(), task -> {
+                            Thread thread = new Thread(task, name + "-worker-" + threadNumber.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+            case VIRTUAL:
+                try {
+                    return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalArgumentException("Virtual threads need Java 21 or newer");
+                }
+            default:
+                throw new IllegalArgumentException("Unknown server core: " + mode);
+        }
+    }
+
+    public int activeConnections() {
+        return activeConnections.get();
+    }
+
+    public long acceptedConnections() {
+        return acceptedConnections.get();
+    }
+
+    /**
+     * Runs the event loop on the calling thread until the core is closed.
+     */
+    public void run() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), backlog);
+        serverChannel.configureBlocking(false);
+        acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        List<ParkedConnection> ready = new ArrayList<>();
+        try {
+            while (serverChannel.isOpen()) {
+                // selectNow below can swallow a wakeup, so never block while tasks are queued
+                if (selectorTasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) {
+                    task.run();
+                }
+
+                // Keys of readable connections are cancelled; the extra selectNow deregisters
+                // them so their channels can be switched back to blocking mode
+                do {
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            acceptConnections();
+                        } else if (key.isReadable()) {
+                            key.cancel();
+                            ready.add((ParkedConnection) key.attachment());
+                        }
+                    }
+                } while (!ready.isEmpty() && selector.selectNow() > 0);
+
+                for (ParkedConnection connection : ready) {
+                    workers.execute(() -> serve(connection));
+                }
+                ready.clear();
+            }
+        } catch (ClosedSelectorException e) {
+            // Closed from another thread
+        }
+    }
+
+    private void acceptConnections() throws IOException {
+        while (activeConnections.get() < maxConnections) {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            activeConnections.incrementAndGet();
+            acceptedConnections.incrementAndGet();
+            try {
+                ParkedConnection connection = new ParkedConnection(channel, handler.open(channel));
+                if (VIRTUAL.equals(mode)) {
+                    workers.execute(() -> serve(connection));
+                } else {
+                    park(connection);
+                }
+            } catch (IOException e) {
+                Log.error(name + ": failed to open connection: " + e.getMessage());
+                closeQuietly(channel);
+                activeConnections.decrementAndGet();
+            }
+        }
+        // At the limit: leave further clients in the listen backlog until a connection closes
+        acceptKey.interestOps(0);
+    }
+
+    private void serve(ParkedConnection parked) {
+        boolean open = false;
+        try {
+            parked.channel.configureBlocking(true);
+            do {
+                open = parked.connection.serve();
+            } while (open && (VIRTUAL.equals(mode) || parked.connection.hasBufferedInput()));
+        } catch (IOException | RuntimeException e) {
+            open = false;
+        }
+
+        if (open) {
+            try {
+                park(parked);
+                return;
+            } catch (IOException e) {
+                // Fall through and close
+            }
+        }
+        close(parked);
+    }
+
+    private void park(ParkedConnection parked) throws IOException {
+        parked.channel.configureBlocking(false);
+        runOnSelector(() -> {
+            try {
+                parked.channel.register(selector, SelectionKey.OP_READ, parked);
+            } catch (IOException e) {
+                close(parked);
+            }
+        });
+    }
+
+    private void close(ParkedConnection parked) {
+        try {
+            parked.connection.close();
+        } catch (IOException ignored) {}
+        closeQuietly(parked.channel);
+        if (activeConnections.getAndDecrement() == maxConnections) {
+            runOnSelector(() -> {
+                if (acceptKey.isValid()) {
+                    acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+                }
+            });
+        }
+    }
+
+    private void runOnSelector(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {}
+    }
+
+    @Override
+    public void close() {
+        if (serverChannel != null) {
+            closeQuietly(serverChannel);
+        }
+        if (selector != null) {
+            closeQuietly(selector);
+        }
+        workers.shutdownNow();
+    }
+
+    private static class ParkedConnection {
+        final SocketChannel channel;
+        final Connection connection;
+
+        ParkedConnection(SocketChannel channel, Connection connection) {
+            this.channel = channel;
+            this.connection = connection;
+        }
+    }
+}
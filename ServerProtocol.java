@@ -0,0 +1,275 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary frames for requests between clients and the server, which a session switches to with
+ * {@code protocol binary}. A frame is a single transport body: a fixed header, a short metadata
+ * string and the data, so a small file travels with its request or reply in one exchange.
+ *
+ * <pre>
+ * opcode       1 byte
+ * flags        1 byte
+ * request id   4 bytes, echoed in the reply
+ * data length  8 bytes
+ * meta length  2 bytes
+ * meta         UTF-8 fields separated by spaces, a file name always last
+ * data
+ * </pre>
+ */
+public final class ServerProtocol {
+    public static final String BINARY = "binary";
+    public static final String TEXT = "text";
+
+    // Requests
+    public static final byte PUT = 1;        // meta: checksum, filename; data: file contents
+    public static final byte GET = 2;        // meta: filename, or with FLAG_IF_NONE_MATCH: checksum, filename
+    public static final byte COMMAND = 3;    // meta: a text command, whose exchange goes on in text messages
+
+    // Responses
+    public static final byte FILE = 32;      // meta: source, checksum; data: file contents
+    public static final byte OK = 33;        // meta: message
+    public static final byte ERROR = 34;     // meta: message
+    public static final byte CHECKSUM = 35;  // meta: checksum of the FILE frame just sent
+    public static final byte NOT_MODIFIED = 36;  // meta: checksum; the client's copy is current, no data
+
+    // FILE: the checksum was not known up front and follows in a CHECKSUM frame
+    public static final byte FLAG_CHECKSUM_FOLLOWS = 1;
+    // GET: the client holds a copy with the checksum in the meta and only wants the file if it differs
+    public static final byte FLAG_IF_NONE_MATCH = 2;
+
+    static final int HEADER_SIZE = 16;
+    private static final int MAX_META_LENGTH = 0xFFFF;
+
+    private ServerProtocol() {}
+
+    /**
+     * Header and metadata of a received frame; its data has gone to the channel chosen for it.
+     */
+    public static class Frame {
+        public final byte opcode;
+        public final byte flags;
+        public final int requestId;
+        public final long length;
+        public final String meta;
+
+        Frame(byte opcode, byte flags, int requestId, long length, String meta) {
+            this.opcode = opcode;
+            this.flags = flags;
+            this.requestId = requestId;
+            this.length = length;
+            this.meta = meta;
+        }
+
+        public boolean hasFlag(byte flag) {
+            return (flags & flag) != 0;
+        }
+    }
+
+    /**
+     * Chooses where the data of a frame goes once its header has arrived; {@code null} discards it.
+     */
+    public interface DataSink {
+        WritableByteChannel open(Frame frame) throws IOException;
+    }
+
+    /**
+     * Encodes the header and metadata of a frame carrying {@code length} bytes of data.
+     */
+    public static ByteBuffer header(byte opcode, byte flags, int requestId, String meta, long length) throws IOException {
+        byte[] encoded = meta.getBytes(StandardCharsets.UTF_8);
+        if (encoded.length > MAX_META_LENGTH) {
+            throw new IOException("Frame metadata longer than " + MAX_META_LENGTH + " bytes");
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + encoded.length);
+        header.put(opcode).put(flags).putInt(requestId).putLong(length).putShort((short) encoded.length).put(encoded);
+        header.flip();
+        return header;
+    }
+
+    public static void send(Transport transport, byte opcode, int requestId, String meta) throws IOException {
+        send(transport, opcode, (byte) 0, requestId, meta, null, 0);
+    }
+
+    /**
+     * Sends a frame whose data is the next {@code length} bytes of {@code data}.
+     */
+    public static void send(Transport transport, byte opcode, byte flags, int requestId, String meta,
+                            ReadableByteChannel data, long length) throws IOException {
+        ByteBuffer header = header(opcode, flags, requestId, meta, length);
+        long size = header.remaining() + length;
+        if (length == 0) {
+            transport.sendFrom(new ByteBufferChannel(header), size);
+        } else {
+            transport.sendFrom(new FrameChannel(header, data), size);
+        }
+    }
+
+    /**
+     * Receives one frame, writing its data to the channel {@code sink} picks for it.
+     */
+    public static Frame receive(Transport transport, DataSink sink) throws IOException {
+        FrameReader reader = new FrameReader(sink);
+        long size = transport.receiveTo(reader);
+        Frame frame = reader.frame();
+        if (frame == null) {
+            throw new EOFException("Frame ended within its header");
+        } else if (size != reader.headerLength() + frame.length) {
+            throw new IOException("Frame of " + size + " bytes does not match its header");
+        }
+        return frame;
+    }
+
+    /**
+     * A frame's encoded header followed by its data.
+     */
+    public static class FrameChannel implements Transport.FramedSource {
+        private final ByteBuffer header;
+        private final ReadableByteChannel data;
+
+        FrameChannel(ByteBuffer header, ReadableByteChannel data) {
+            this.header = header;
+            this.data = data;
+        }
+
+        @Override
+        public ByteBuffer header() {
+            return header;
+        }
+
+        @Override
+        public ReadableByteChannel data() {
+            return data;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!header.hasRemaining()) {
+                return data.read(dst);
+            }
+            int length = Math.min(header.remaining(), dst.remaining());
+            ByteBuffer part = header.duplicate();
+            part.limit(part.position() + length);
+            dst.put(part);
+            header.position(header.position() + length);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return data.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            data.close();
+        }
+    }
+
+    /**
+     * Parses a frame as its body arrives and passes the data on to the channel chosen for it,
+     * so a file still lands on disk without a copy.
+     */
+    public static class FrameReader implements Transport.FramedSink {
+        private static final WritableByteChannel DISCARD = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int length = src.remaining();
+                src.position(src.limit());
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        private final DataSink sink;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        private ByteBuffer meta;
+        private Frame frame;
+        private WritableByteChannel data;
+
+        FrameReader(DataSink sink) {
+            this.sink = sink;
+        }
+
+        /**
+         * How many more bytes are needed before the frame's header and metadata are complete.
+         */
+        @Override
+        public int headerBytesNeeded() {
+            if (header.hasRemaining()) {
+                return header.remaining();
+            }
+            return frame == null ? meta.remaining() : 0;
+        }
+
+        /**
+         * Where the frame's data goes, once {@link #headerBytesNeeded} is zero.
+         */
+        @Override
+        public WritableByteChannel dataSink() {
+            return data;
+        }
+
+        Frame frame() {
+            return frame;
+        }
+
+        int headerLength() {
+            return HEADER_SIZE + (meta != null ? meta.capacity() : 0);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int count = src.remaining();
+            while (frame == null && src.hasRemaining()) {
+                ByteBuffer target = header.hasRemaining() ? header : meta;
+                int length = Math.min(target.remaining(), src.remaining());
+                ByteBuffer part = src.duplicate();
+                part.limit(part.position() + length);
+                target.put(part);
+                src.position(src.position() + length);
+                parse();
+            }
+            while (src.hasRemaining()) {
+                data.write(src);
+            }
+            return count;
+        }
+
+        private void parse() throws IOException {
+            if (meta == null && !header.hasRemaining()) {
+                meta = ByteBuffer.allocate(header.getShort(14) & MAX_META_LENGTH);
+            }
+            if (meta != null && !meta.hasRemaining()) {
+                long length = header.getLong(6);
+                if (length < 0) {
+                    throw new IOException("Malformed frame header");
+                }
+                frame = new Frame(header.get(0), header.get(1), header.getInt(2), length,
+                        new String(meta.array(), StandardCharsets.UTF_8));
+                WritableByteChannel chosen = sink != null ? sink.open(frame) : null;
+                data = chosen != null ? chosen : DISCARD;
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
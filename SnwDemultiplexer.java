@@ -0,0 +1,148 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+/**
+ * Serves many SNW clients on one UDP port. A single receiver thread reads every datagram and
+ * routes it by the sender's address and port to that peer's session; each session is an
+ * {@link snw_transport} handled on its own executor thread. Datagrams are received into pooled
+ * direct buffers that sessions hand back once they have read them. Buffers come in two sizes:
+ * a datagram is received into a large one, and copied to a small one if it fits, so ACKs and
+ * messages do not each hold 64 KB while queued. At most {@code maxSessions} sessions are open at
+ * once; at the limit, datagrams that would open another are dropped, like a TCP connection left
+ * in the backlog, and the peer retries.
+ */
+public class SnwDemultiplexer implements Closeable {
+    // Datagrams queued per session before new ones are dropped; the sender retransmits them
+    private static final int SESSION_QUEUE_CAPACITY = 4096;
+    // Idle datagram buffers kept for reuse; more are allocated while every pooled one is queued
+    private static final int SMALL_POOL_CAPACITY = 8192;
+    private static final int LARGE_POOL_CAPACITY = 128;
+    // Holds a 1 KB chunk or an Ethernet-sized datagram
+    private static final int SMALL_BUFFER_SIZE = 2048;
+
+    public interface SessionHandler {
+        void handle(Transport session);
+    }
+
+    private final DatagramChannel channel;
+    private final int windowSize;
+    private final int chunkSize;
+    private final int maxSessions;
+    private final ExecutorService executor;
+    private final SessionHandler handler;
+    private final Map<InetSocketAddress, BlockingQueue<ByteBuffer>> sessions = new ConcurrentHashMap<>();
+    private final BlockingQueue<ByteBuffer> smallBuffers = new ArrayBlockingQueue<>(SMALL_POOL_CAPACITY);
+    private final BlockingQueue<ByteBuffer> largeBuffers = new ArrayBlockingQueue<>(LARGE_POOL_CAPACITY);
+    private final Consumer<ByteBuffer> releaseBuffer = this::release;
+
+    public SnwDemultiplexer(int port, int windowSize, int chunkSize, int maxSessions, ExecutorService executor,
+                            SessionHandler handler) throws IOException {
+        this.channel = DatagramChannel.open();
+        snw_transport.configureBuffers(channel);
+        this.channel.bind(new InetSocketAddress(port));
+        this.windowSize = windowSize;
+        this.chunkSize = chunkSize;
+        this.maxSessions = maxSessions;
+        this.executor = executor;
+        this.handler = handler;
+    }
+
+    public int activeSessions() {
+        return sessions.size();
+    }
+
+    /**
+     * Receives and routes datagrams until the channel is closed.
+     */
+    public void run() throws IOException {
+        ByteBuffer buffer = null;
+        while (channel.isOpen()) {
+            if (buffer == null) {
+                buffer = acquire(largeBuffers, snw_transport.MAX_PACKET_SIZE);
+            }
+            buffer.clear();
+            InetSocketAddress peer;
+            try {
+                peer = (InetSocketAddress) channel.receive(buffer);
+            } catch (ClosedChannelException e) {
+                return;
+            }
+            buffer.flip();
+
+            BlockingQueue<ByteBuffer> inbox = sessions.get(peer);
+            if (inbox == null) {
+                if (!snw_transport.opensSession(buffer)) {
+                    continue;
+                } else if (sessions.size() >= maxSessions) {
+                    Log.debug("Too many SNW sessions; ignoring " + peer);
+                    continue;
+                }
+                inbox = openSession(peer);
+            }
+            ByteBuffer queued = buffer;
+            if (buffer.remaining() <= SMALL_BUFFER_SIZE) {
+                queued = acquire(smallBuffers, SMALL_BUFFER_SIZE);
+                queued.clear();
+                queued.put(buffer).flip();
+            }
+            if (inbox.offer(queued)) {
+                if (queued == buffer) {
+                    buffer = null;
+                }
+            } else if (queued != buffer) {
+                release(queued);
+            }
+        }
+    }
+
+    private static ByteBuffer acquire(BlockingQueue<ByteBuffer> pool, int size) {
+        ByteBuffer buffer = pool.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(size);
+    }
+
+    private void release(ByteBuffer buffer) {
+        if (buffer.capacity() == SMALL_BUFFER_SIZE) {
+            smallBuffers.offer(buffer);
+        } else {
+            largeBuffers.offer(buffer);
+        }
+    }
+
+    private BlockingQueue<ByteBuffer> openSession(InetSocketAddress peer) {
+        BlockingQueue<ByteBuffer> inbox = new ArrayBlockingQueue<>(SESSION_QUEUE_CAPACITY);
+        sessions.put(peer, inbox);
+        Log.debug("New SNW session from " + peer);
+        executor.execute(() -> {
+            try (snw_transport session = new snw_transport(channel, peer, inbox, releaseBuffer, windowSize,
+                    chunkSize, () -> closeSession(peer, inbox))) {
+                handler.handle(session);
+            } catch (IOException e) {
+                Log.error("Error closing SNW session: " + e.getMessage());
+            }
+        });
+        return inbox;
+    }
+
+    private void closeSession(InetSocketAddress peer, BlockingQueue<ByteBuffer> inbox) {
+        sessions.remove(peer, inbox);
+        ByteBuffer buffer;
+        while ((buffer = inbox.poll()) != null) {
+            release(buffer);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
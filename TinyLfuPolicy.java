@@ -0,0 +1,153 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * W-TinyLFU: new entries land in a small LRU window, and an entry leaving the window only enters
+ * the main segmented LRU if it has been accessed more often than the entry it would push out.
+ * Access frequencies are estimated with a count-min sketch that is periodically halved, so
+ * one-hit wonders cannot flush a working set of popular files.
+ */
+public class TinyLfuPolicy implements EvictionPolicy {
+    private static final double WINDOW_SHARE = 0.01;
+    private static final double PROTECTED_SHARE = 0.8;
+    private static final long BYTES_PER_SKETCH_COUNTER = 4096;
+
+    private final long capacity;
+    private final long windowCapacity;
+    private final long protectedCapacity;
+    private final Segment window = new Segment();
+    private final Segment probation = new Segment();
+    private final Segment protectedSegment = new Segment();
+    private final FrequencySketch sketch;
+
+    public TinyLfuPolicy(long capacity) {
+        this.capacity = capacity;
+        this.windowCapacity = Math.max(1, (long) (capacity * WINDOW_SHARE));
+        this.protectedCapacity = (long) ((capacity - windowCapacity) * PROTECTED_SHARE);
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(256, capacity / BYTES_PER_SKETCH_COUNTER)));
+    }
+
+    @Override
+    public void recordAccess(String key) {
+        sketch.increment(key);
+        if (window.touch(key) || protectedSegment.touch(key)) {
+            return;
+        }
+        Long weight = probation.remove(key);
+        if (weight != null) {
+            // A second hit promotes the entry to the protected segment
+            protectedSegment.put(key, weight);
+            while (protectedSegment.weightedSize > protectedCapacity) {
+                Map.Entry<String, Long> demoted = protectedSegment.removeEldest();
+                probation.put(demoted.getKey(), demoted.getValue());
+            }
+        }
+    }
+
+    @Override
+    public List<String> add(String key, long weight) {
+        remove(key);
+        List<String> evicted = new ArrayList<>();
+        if (weight > capacity) {
+            evicted.add(key);
+            return evicted;
+        }
+
+        window.put(key, weight);
+        while (window.weightedSize > windowCapacity) {
+            Map.Entry<String, Long> candidate = window.removeEldest();
+            admitToMain(candidate.getKey(), candidate.getValue(), evicted);
+        }
+        return evicted;
+    }
+
+    private void admitToMain(String candidate, long weight, List<String> evicted) {
+        long mainCapacity = capacity - windowCapacity;
+        if (weight > mainCapacity) {
+            evicted.add(candidate);
+            return;
+        }
+        if (mainSize() + weight <= mainCapacity) {
+            probation.put(candidate, weight);
+            return;
+        }
+
+        // The candidate has to beat the first victim; after that, victims are dropped until it fits
+        String victim = nextVictim();
+        if (victim == null || sketch.frequency(candidate) <= sketch.frequency(victim)) {
+            evicted.add(candidate);
+            return;
+        }
+        while (mainSize() + weight > mainCapacity && (victim = nextVictim()) != null) {
+            remove(victim);
+            evicted.add(victim);
+        }
+        probation.put(candidate, weight);
+    }
+
+    private String nextVictim() {
+        if (!probation.entries.isEmpty()) {
+            return probation.entries.keySet().iterator().next();
+        }
+        if (!protectedSegment.entries.isEmpty()) {
+            return protectedSegment.entries.keySet().iterator().next();
+        }
+        return null;
+    }
+
+    private long mainSize() {
+        return probation.weightedSize + protectedSegment.weightedSize;
+    }
+
+    @Override
+    public void remove(String key) {
+        if (window.remove(key) == null && probation.remove(key) == null) {
+            protectedSegment.remove(key);
+        }
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return window.entries.containsKey(key)
+                || probation.entries.containsKey(key)
+                || protectedSegment.entries.containsKey(key);
+    }
+
+    @Override
+    public long weightedSize() {
+        return window.weightedSize + mainSize();
+    }
+
+    private static class Segment {
+        private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long weightedSize;
+
+        boolean touch(String key) {
+            return entries.get(key) != null;
+        }
+
+        void put(String key, long weight) {
+            entries.put(key, weight);
+            weightedSize += weight;
+        }
+
+        Long remove(String key) {
+            Long weight = entries.remove(key);
+            if (weight != null) {
+                weightedSize -= weight;
+            }
+            return weight;
+        }
+
+        Map.Entry<String, Long> removeEldest() {
+            Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+            Map.Entry<String, Long> entry = eldest.next();
+            eldest.remove();
+            weightedSize -= entry.getValue();
+            return entry;
+        }
+    }
+}
@@ -1,9 +1,72 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 public interface Transport extends Closeable {
     void send(String message) throws IOException;
     String receive() throws IOException;
-    void sendFile(byte[] data) throws IOException;
-    byte[] receiveFile() throws IOException;
+
+    /**
+     * Streams exactly {@code size} bytes from {@code source} to the peer. Only a fixed-size
+     * buffer is held in memory, so the file size is not limited by the heap.
+     */
+    void sendFrom(ReadableByteChannel source, long size) throws IOException;
+
+    /**
+     * Streams a file sent with {@link #sendFrom} into {@code sink} and returns its size.
+     */
+    long receiveTo(WritableByteChannel sink) throws IOException;
+
+    default void sendFile(byte[] data) throws IOException {
+        sendFrom(Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+    }
+
+    default byte[] receiveFile() throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        receiveTo(Channels.newChannel(data));
+        return data.toByteArray();
+    }
+
+    /**
+     * Source of a header followed by data from another channel. Transports send the header
+     * along with the body size and then pass the data on their fastest path.
+     */
+    interface FramedSource extends ReadableByteChannel {
+        ByteBuffer header();
+
+        ReadableByteChannel data();
+    }
+
+    /**
+     * Sink that parses a header before its data. Transports feed it the header alone and then
+     * write the data straight to {@link #dataSink}.
+     */
+    interface FramedSink extends WritableByteChannel {
+        /**
+         * How many more bytes are needed before the header is complete.
+         */
+        int headerBytesNeeded();
+
+        /**
+         * Where the data goes, once {@link #headerBytesNeeded} is zero.
+         */
+        WritableByteChannel dataSink();
+    }
+
+    /**
+     * Source that can write its data to a socket without a copy through the transport's buffer.
+     */
+    interface DirectSource extends ReadableByteChannel {
+        /**
+         * Writes the next {@code count} bytes to {@code target} and advances past them.
+         *
+         * @throws java.io.EOFException if the source ends first
+         */
+        void transferTo(long count, WritableByteChannel target) throws IOException;
+    }
 }
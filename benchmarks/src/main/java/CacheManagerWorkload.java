@@ -0,0 +1,79 @@
+import bench.Workload;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * A {@link CacheManager} in a temporary directory holding one file. A hit reads the whole file;
+ * with {@code tier=disk} the memory tier is disabled so hits go to the file on disk.
+ */
+public class CacheManagerWorkload implements Workload {
+    private static final String CACHED = "cached.bin";
+
+    private Path directory;
+    private CacheManager cacheManager;
+    private int size;
+    private ByteBuffer data;
+    private ByteBuffer readBuffer;
+
+    @Override
+    public void setUp(Map<String, String> params) throws Exception {
+        size = Integer.parseInt(params.get("size"));
+        directory = Files.createTempDirectory("cache-bench");
+        long memoryCapacity = "memory".equals(params.get("tier")) ? CacheManager.DEFAULT_MEMORY_CAPACITY : 0;
+        cacheManager = new CacheManager(directory.toString(), params.get("policy"), memoryCapacity,
+                CacheManager.DEFAULT_DISK_CAPACITY);
+
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        data = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        readBuffer = ByteBuffer.allocateDirect(size);
+        cacheManager.storeFrom(CACHED, new ByteBufferChannel(data), size);
+        // The first hit promotes the file to the memory tier
+        hit();
+    }
+
+    @Override
+    public Operation operation(String name) {
+        switch (name) {
+            case "hit":
+                return this::hit;
+            case "miss":
+                return () -> cacheManager.openFile("missing.bin");
+            case "store":
+                return () -> {
+                    cacheManager.storeFrom("stored.bin", new ByteBufferChannel(data), size);
+                    return size;
+                };
+            default:
+                throw new IllegalArgumentException("Unknown operation: " + name);
+        }
+    }
+
+    private Object hit() throws IOException {
+        try (SeekableByteChannel channel = cacheManager.openFile(CACHED)) {
+            readBuffer.clear();
+            while (readBuffer.hasRemaining() && channel.read(readBuffer) >= 0) {
+                // Read the whole file
+            }
+            return readBuffer.position();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The chunk store keeps its chunks and index in subdirectories
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+import bench.Workload;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A server and cache started in this JVM with {@code clients} connected clients. Each GET or PUT
+ * operation has every client issue one request at the same time and waits for all of them.
+ * Clients use {@link ServerProtocol} frames, so each request is a single exchange.
+ */
+public class EndToEndWorkload implements Workload {
+    private int clients;
+    private int size;
+    private String sharedFile;
+    private ByteBuffer data;
+    private String checksum;
+    private List<Transport> connections;
+    private ExecutorService clientThreads;
+
+    @Override
+    public void setUp(Map<String, String> params) throws Exception {
+        clients = Integer.parseInt(params.get("clients"));
+        size = Integer.parseInt(params.get("size"));
+        int cachePort = freePort();
+        int serverPort = freePort();
+        startDaemon("cache", () -> new cache(cachePort, "tcp", "localhost", serverPort).start());
+        startDaemon("server", () -> new server(serverPort, "tcp", "localhost", cachePort).start());
+
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        data = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        checksum = Checksums.crc32c(data);
+        sharedFile = "bench-" + size + ".bin";
+        Files.createDirectories(Paths.get("server_files"));
+        Files.write(Paths.get("server_files", sharedFile), bytes);
+
+        connections = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Transport connection = new tcp_transport(connect(serverPort).socket());
+            connection.send("protocol " + ServerProtocol.BINARY);
+            String response = connection.receive();
+            if (!("PROTOCOL " + ServerProtocol.BINARY).equals(response)) {
+                throw new IOException(response);
+            }
+            connections.add(connection);
+        }
+        clientThreads = Executors.newFixedThreadPool(clients);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    private interface Service {
+        void start() throws IOException;
+    }
+
+    private static void startDaemon(String name, Service service) {
+        Thread thread = new Thread(() -> {
+            try {
+                service.start();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static SocketChannel connect(int port) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return SocketChannel.open(new InetSocketAddress("localhost", port));
+            } catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    @Override
+    public Operation operation(String name) {
+        switch (name) {
+            case "get":
+                return this::get;
+            case "put":
+                return this::put;
+            default:
+                throw new IllegalArgumentException("Unknown operation: " + name);
+        }
+    }
+
+    private Object get() throws Exception {
+        return runAll(transport -> {
+            ServerProtocol.send(transport, ServerProtocol.GET, 1, sharedFile);
+            DiscardChannel sink = new DiscardChannel();
+            ServerProtocol.Frame reply = ServerProtocol.receive(transport, frame -> sink);
+            if (reply.opcode != ServerProtocol.FILE) {
+                throw new IOException(reply.meta);
+            }
+            if (reply.hasFlag(ServerProtocol.FLAG_CHECKSUM_FOLLOWS)) {
+                ServerProtocol.receive(transport, null);
+            }
+            return reply.length;
+        });
+    }
+
+    private Object put() throws Exception {
+        return runAll(transport -> {
+            String meta = checksum + " upload-" + System.identityHashCode(transport) + ".bin";
+            ServerProtocol.send(transport, ServerProtocol.PUT, (byte) 0, 1, meta, new ByteBufferChannel(data), size);
+            ServerProtocol.Frame reply = ServerProtocol.receive(transport, null);
+            if (reply.opcode != ServerProtocol.OK) {
+                throw new IOException(reply.meta);
+            }
+            return size;
+        });
+    }
+
+    private interface Request {
+        long run(Transport transport) throws IOException;
+    }
+
+    private long runAll(Request request) throws Exception {
+        List<Future<Long>> results = new ArrayList<>();
+        for (Transport transport : connections) {
+            Callable<Long> call = () -> request.run(transport);
+            results.add(clientThreads.submit(call));
+        }
+        long bytes = 0;
+        for (Future<Long> result : results) {
+            bytes += result.get();
+        }
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Transport transport : connections) {
+            ServerProtocol.send(transport, ServerProtocol.COMMAND, 1, "quit");
+            transport.close();
+        }
+        clientThreads.shutdownNow();
+    }
+
+    private static class DiscardChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer source) {
+            int length = source.remaining();
+            source.position(source.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import bench.Workload;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A sender and a receiver {@link Transport} connected over loopback; {@code transfer} sends the
+ * source file and waits for the receiver to confirm it has written every byte.
+ */
+public class TransportWorkload implements Workload {
+    private Path directory;
+    private int size;
+    private FileChannel source;
+    private FileChannel sink;
+    private Transport sender;
+    private Transport receiver;
+    private ExecutorService receiverThread;
+
+    @Override
+    public void setUp(Map<String, String> params) throws Exception {
+        size = Integer.parseInt(params.get("size"));
+        directory = Files.createTempDirectory("transport-bench");
+        Path sourceFile = directory.resolve("source.bin");
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        Files.write(sourceFile, data);
+        source = FileChannel.open(sourceFile, StandardOpenOption.READ);
+        sink = FileChannel.open(directory.resolve("sink.bin"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        receiverThread = Executors.newSingleThreadExecutor();
+
+        if ("tcp".equals(params.get("protocol"))) {
+            try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+                listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                SocketChannel client = SocketChannel.open(listener.getLocalAddress());
+                sender = new tcp_transport(client.socket());
+                receiver = new tcp_transport(listener.accept().socket());
+            }
+        } else {
+            int port;
+            try (DatagramSocket probe = new DatagramSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            receiver = new snw_transport(port);
+            sender = new snw_transport(InetAddress.getLoopbackAddress(), port, 0);
+            // The receiving side learns its peer from the first message
+            Future<String> hello = receiverThread.submit(receiver::receive);
+            sender.send("hello");
+            hello.get();
+        }
+    }
+
+    @Override
+    public Operation operation(String name) {
+        if (!"transfer".equals(name)) {
+            throw new IllegalArgumentException("Unknown operation: " + name);
+        }
+        return this::transfer;
+    }
+
+    private Object transfer() throws Exception {
+        Future<Long> received = receiverThread.submit(() -> {
+            sink.position(0);
+            long length = receiver.receiveTo(sink);
+            receiver.send("OK");
+            return length;
+        });
+        source.position(0);
+        sender.sendFrom(source, size);
+        sender.receive();
+        return received.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        receiverThread.shutdownNow();
+        sender.close();
+        receiver.close();
+        source.close();
+        sink.close();
+        Files.deleteIfExists(directory.resolve("source.bin"));
+        Files.deleteIfExists(directory.resolve("sink.bin"));
+        Files.deleteIfExists(directory);
+    }
+}
@@ -0,0 +1,71 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CacheManager lookups: a hit read in full from the memory or the disk tier, a miss, and a
+ * store. With {@code tier=disk} the memory tier is disabled so every hit goes to the file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheManagerBenchmark {
+    @Param({"memory", "disk"})
+    public String tier;
+
+    @Param({"lru", "tinylfu"})
+    public String policy;
+
+    @Param({"4096", "1048576"})
+    public int size;
+
+    private Workload workload;
+    private Workload.Operation hit;
+    private Workload.Operation miss;
+    private Workload.Operation store;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload = Workload.create("CacheManagerWorkload", "tier", tier, "policy", policy, "size", String.valueOf(size));
+        hit = workload.operation("hit");
+        miss = workload.operation("miss");
+        store = workload.operation("store");
+    }
+
+    @Benchmark
+    public Object hit() throws Exception {
+        return hit.run();
+    }
+
+    @Benchmark
+    public Object miss() throws Exception {
+        return miss.run();
+    }
+
+    @Benchmark
+    public Object store() throws Exception {
+        return store.run();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        workload.close();
+    }
+}
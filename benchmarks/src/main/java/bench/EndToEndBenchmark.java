@@ -0,0 +1,65 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full GET and PUT flows against a server and cache started in the benchmark JVM. Each operation
+ * has {@code clients} connected clients issue one request at the same time and waits for all of
+ * them, so requests per second is the score times {@code clients}.
+ *
+ * The server and cache use {@code server_files} and {@code cache_files} in the working directory,
+ * so run the benchmarks from a scratch directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+    @Param({"1", "4", "16"})
+    public int clients;
+
+    @Param({"4096", "1048576"})
+    public int size;
+
+    private Workload workload;
+    private Workload.Operation get;
+    private Workload.Operation put;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload = Workload.create("EndToEndWorkload", "clients", String.valueOf(clients), "size", String.valueOf(size));
+        get = workload.operation("get");
+        put = workload.operation("put");
+    }
+
+    @Benchmark
+    public Object get() throws Exception {
+        return get.run();
+    }
+
+    @Benchmark
+    public Object put() throws Exception {
+        return put.run();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        workload.close();
+    }
+}
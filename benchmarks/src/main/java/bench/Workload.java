@@ -0,0 +1,32 @@
+package bench;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Code under benchmark driven through an interface. The application lives in the default
+ * package, which JMH does not accept for benchmark classes and which classes in a named package
+ * cannot refer to, so each benchmark loads its workload (written in the default package) by name.
+ */
+public interface Workload extends AutoCloseable {
+    interface Operation {
+        Object run() throws Exception;
+    }
+
+    void setUp(Map<String, String> params) throws Exception;
+
+    /**
+     * Looks up an operation once, so the measured call is a plain interface call.
+     */
+    Operation operation(String name);
+
+    static Workload create(String className, String... params) throws Exception {
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < params.length; i += 2) {
+            values.put(params[i], params[i + 1]);
+        }
+        Workload workload = (Workload) Class.forName(className).getDeclaredConstructor().newInstance();
+        workload.setUp(values);
+        return workload;
+    }
+}
@@ -1,40 +1,74 @@
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class cache {
+    private static final String USAGE =
+            "Usage: java cache [port] [cache ip] [tcp/snw] [server ip] [server port] [lru/tinylfu] [memory MB] [disk MB] [selector/virtual] [metrics port]";
+
     private final int port;
     private final String protocol;
     private final String serverIp;
     private final int serverPort;
+    private final String coreMode;
+    // Port of the local metrics endpoint, 0 for JMX only
+    private final int metricsPort;
     private final CacheManager cacheManager;
     private final ExecutorService executor;
 
     public cache(int port, String protocol, String serverIp, int serverPort) throws IOException {
+        this(port, protocol, serverIp, serverPort, CacheManager.DEFAULT_POLICY,
+                CacheManager.DEFAULT_MEMORY_CAPACITY, CacheManager.DEFAULT_DISK_CAPACITY, ServerCore.SELECTOR);
+    }
+
+    public cache(int port, String protocol, String serverIp, int serverPort, String evictionPolicy,
+                 long memoryCapacity, long diskCapacity, String coreMode) throws IOException {
+        this(port, protocol, serverIp, serverPort, evictionPolicy, memoryCapacity, diskCapacity, coreMode, 0);
+    }
+
+    public cache(int port, String protocol, String serverIp, int serverPort, String evictionPolicy,
+                 long memoryCapacity, long diskCapacity, String coreMode, int metricsPort) throws IOException {
         this.port = port;
         this.protocol = protocol;
         this.serverIp = serverIp;
         this.serverPort = serverPort;
-        this.cacheManager = new CacheManager("cache_files");
-        this.executor = Executors.newCachedThreadPool();
+        this.coreMode = coreMode;
+        this.metricsPort = metricsPort;
+        this.cacheManager = new CacheManager("cache_files", evictionPolicy, memoryCapacity, diskCapacity);
+        this.executor = ServerCore.newWorkerPool(coreMode, ServerCore.DEFAULT_WORKERS, "cache-request");
     }
 
     public void start() throws IOException {
-        ServerSocket serverSocket = new ServerSocket(port);
-        System.out.println("Cache service started on port " + port + " using protocol: " + protocol.toUpperCase());
-
-        while (true) {
-            try {
-                Socket clientSocket = serverSocket.accept();
-                executor.execute(new ClientHandler(clientSocket, cacheManager));
-            } catch (IOException e) {
-                System.err.println("Failed to accept client connection.");
-            }
+        // Every multiplexed connection keeps its reader on a core worker, so admit no more
+        // connections than there are workers; further servers wait in the backlog
+        try (ServerCore core = new ServerCore("cache", port, coreMode, ServerCore.DEFAULT_WORKERS,
+                ServerCore.DEFAULT_WORKERS, ServerCore.DEFAULT_BACKLOG,
+                channel -> new ClientHandler(channel, cacheManager, executor))) {
+            registerMetrics(core);
+            Log.info("Cache service started on port " + port + " using protocol: " + protocol.toUpperCase());
+            Log.info("Cache contents: " + cacheManager);
+            core.run();
         }
     }
 
+    private void registerMetrics(ServerCore core) throws IOException {
+        Metrics.gauge("cache_memory_hits", "Lookups served from the memory tier", cacheManager::memoryHits);
+        Metrics.gauge("cache_disk_hits", "Lookups served from the disk tier", cacheManager::diskHits);
+        Metrics.gauge("cache_misses", "Lookups of files the cache does not hold", cacheManager::misses);
+        Metrics.gauge("cache_hit_ratio", "Share of lookups served from either tier", () -> {
+            double hits = cacheManager.memoryHits() + cacheManager.diskHits();
+            double lookups = hits + cacheManager.misses();
+            return lookups == 0 ? 0 : hits / lookups;
+        });
+        Metrics.gauge("cache_evictions", "Files evicted from either tier",
+                () -> cacheManager.memoryEvictions() + cacheManager.diskEvictions());
+        Metrics.gauge("cache_invalidations", "Files dropped because the server replaced or deleted them",
+                cacheManager::invalidations);
+        Metrics.gauge("cache_memory_bytes", "Bytes held in the memory tier", cacheManager::memoryBytes);
+        Metrics.gauge("cache_disk_bytes", "Bytes held in the disk tier", cacheManager::diskBytes);
+        Metrics.gauge("cache_active_connections", "Open server connections", core::activeConnections);
+        Metrics.publish(metricsPort);
+    }
+
     public static void main(String[] args) {
         try {
             cache cacheService = getCacheInstance(args);
@@ -42,8 +76,11 @@ public class cache {
         } catch (IOException e) {
             System.err.println("IO Exception occurred while starting the cache service.");
         } catch (NumberFormatException e) {
-            System.err.println("Invalid port number provided.");
-            System.out.println("Usage: java CacheService [port] [tcp/snw] [server ip] [server port]");
+            System.err.println("Invalid number provided.");
+            System.out.println(USAGE);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.out.println(USAGE);
         }
     }
 
@@ -53,6 +90,11 @@ public class cache {
         String protocol = "tcp";
         String serverIp = "localhost";
         int serverPort = 4040;
+        String evictionPolicy = CacheManager.DEFAULT_POLICY;
+        long memoryCapacity = CacheManager.DEFAULT_MEMORY_CAPACITY;
+        long diskCapacity = CacheManager.DEFAULT_DISK_CAPACITY;
+        String coreMode = ServerCore.SELECTOR;
+        int metricsPort = 0;
 
         if (args.length >= 1) {
             port = Integer.parseInt(args[0]);
@@ -69,7 +111,22 @@ public class cache {
         if (args.length >= 5) {
             serverPort = Integer.parseInt(args[4]);
         }
+        if (args.length >= 6) {
+            evictionPolicy = args[5];
+        }
+        if (args.length >= 7) {
+            memoryCapacity = Long.parseLong(args[6]) * 1024 * 1024;
+        }
+        if (args.length >= 8) {
+            diskCapacity = Long.parseLong(args[7]) * 1024 * 1024;
+        }
+        if (args.length >= 9) {
+            coreMode = args[8];
+        }
+        if (args.length >= 10) {
+            metricsPort = Integer.parseInt(args[9]);
+        }
 
-        return new cache(port, protocol, serverIp, serverPort);
+        return new cache(port, protocol, serverIp, serverPort, evictionPolicy, memoryCapacity, diskCapacity, coreMode, metricsPort);
     }
 }
@@ -1,45 +1,265 @@
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 
 public class client {
+    // Files at least this large are split into ranges when more than one stream is configured
+    private static final long PARALLEL_THRESHOLD = 4L * 1024 * 1024;
+    // Files at least this large are uploaded as chunks, skipping those the server already holds
+    private static final long DEDUP_THRESHOLD = 1024 * 1024;
+    // Requests of an mget or mput kept in flight on the main connection at once
+    private static final int PIPELINE_WINDOW = 64;
+    // Where whole files are read from: the server, or the cache nodes first
+    private static final String READ_FROM_SERVER = "server";
+    private static final String READ_FROM_CACHE = "cache";
+
+    /**
+     * Size and checksum of a file on the server.
+     */
+    private static class RemoteFile {
+        final long size;
+        final String checksum;
+
+        RemoteFile(long size, String checksum) {
+            this.size = size;
+            this.checksum = checksum;
+        }
+    }
+
+    /**
+     * Where a downloaded file came from and the checksum the server sent with it.
+     */
+    private static class Delivery {
+        // The server found the local copy current and sent nothing
+        static final Delivery NOT_MODIFIED = new Delivery(null, null);
+
+        final String source;
+        final String checksum;
+
+        Delivery(String source, String checksum) {
+            this.source = source;
+            this.checksum = checksum;
+        }
+    }
+
+    /**
+     * One request of a pipelined mget or mput. Replies come back in the order the server
+     * finishes them and are handed to the request they answer.
+     */
+    private abstract static class PipelinedRequest {
+        boolean succeeded;
+
+        /**
+         * Sends the request, or returns {@code false} if it failed before anything was sent.
+         */
+        abstract boolean send(int requestId) throws IOException;
+
+        /**
+         * Where the data of a reply frame goes; {@code null} discards it.
+         */
+        WritableByteChannel sink(ServerProtocol.Frame frame) {
+            return null;
+        }
+
+        /**
+         * Takes a reply frame and returns whether the reply is complete. Failures that only
+         * concern this request are reported here, so the rest of the batch carries on.
+         */
+        abstract boolean receive(ServerProtocol.Frame frame);
+
+        /**
+         * Releases what the request holds, also when the batch is abandoned midway.
+         */
+        void close() throws IOException {
+        }
+    }
+
+    /**
+     * Moves one range of a file over its own stream.
+     */
+    private interface RangeTransfer {
+        void transfer(Transport stream, long offset, long length) throws IOException;
+    }
+
     private final String serverAddress;
     private final int clientPort;
     private final int serverPort;
     private final String protocol;
+    private final int snwWindowSize;
+    private final int snwChunkSize;
+    private final int streams;
+    private final String compression;
     private final Transport transport;
+    // Whether the server takes requests on the main connection as ServerProtocol frames
+    private final boolean framed;
+    // Downloaded files kept in client_cache; null unless enabled
+    private final LocalCache localCache;
+    // Cache nodes to read whole files from before asking the server; null to always ask the server
+    private final CacheCluster caches;
+    private int requestIds;
+    private ExecutorService rangeExecutor;
 
     public client(int clientPort, String serverAddress, int serverPort, String protocol) throws IOException {
+        this(clientPort, serverAddress, serverPort, protocol, snw_transport.DEFAULT_WINDOW_SIZE);
+    }
+
+    public client(int clientPort, String serverAddress, int serverPort, String protocol, int snwWindowSize) throws IOException {
+        this(clientPort, serverAddress, serverPort, protocol, snwWindowSize, snw_transport.AUTO_CHUNK_SIZE);
+    }
+
+    public client(int clientPort, String serverAddress, int serverPort, String protocol, int snwWindowSize,
+                  int snwChunkSize) throws IOException {
+        this(clientPort, serverAddress, serverPort, protocol, snwWindowSize, snwChunkSize, 1);
+    }
+
+    public client(int clientPort, String serverAddress, int serverPort, String protocol, int snwWindowSize,
+                  int snwChunkSize, int streams) throws IOException {
+        this(clientPort, serverAddress, serverPort, protocol, snwWindowSize, snwChunkSize, streams, CompressedTransport.NONE);
+    }
+
+    public client(int clientPort, String serverAddress, int serverPort, String protocol, int snwWindowSize,
+                  int snwChunkSize, int streams, String compression) throws IOException {
+        this(clientPort, serverAddress, serverPort, protocol, snwWindowSize, snwChunkSize, streams, compression, 0, null, 0);
+    }
+
+    /**
+     * @param localCacheSize bytes of downloaded files to keep in {@code client_cache}, 0 for none
+     * @param cacheAddress   the cache node, or comma-separated {@code host[:port]} nodes as given
+     *                       to the server, to read whole files from directly; {@code null} to
+     *                       always ask the server
+     */
+    public client(int clientPort, String serverAddress, int serverPort, String protocol, int snwWindowSize,
+                  int snwChunkSize, int streams, String compression, long localCacheSize, String cacheAddress,
+                  int cachePort) throws IOException {
+        if (streams < 1) {
+            throw new IllegalArgumentException("Number of streams must be at least 1");
+        }
+        if (!CompressedTransport.DEFLATE.equalsIgnoreCase(compression) && !CompressedTransport.NONE.equalsIgnoreCase(compression)) {
+            throw new IllegalArgumentException("Unknown compression: " + compression);
+        }
         this.clientPort = clientPort;
         this.serverAddress = serverAddress;
         this.serverPort = serverPort;
         this.protocol = protocol.toLowerCase();
+        this.snwWindowSize = snwWindowSize;
+        this.snwChunkSize = snwChunkSize;
+        this.streams = streams;
+        this.compression = compression.toLowerCase();
+        this.localCache = localCacheSize > 0 ? new LocalCache(Paths.get("client_cache"), localCacheSize) : null;
+        this.caches = cacheAddress != null
+                ? new CacheCluster(cacheAddress, cachePort, 1, CacheCluster.DEFAULT_REPLICAS) : null;
 
-        this.transport = initializeTransport();
+        Transport connection = initializeTransport(clientPort);
+        try {
+            this.framed = negotiateFrames(connection);
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+        this.transport = connection;
         System.out.println("Client started using protocol: " + protocol.toUpperCase());
     }
 
-    private Transport initializeTransport() throws IOException {
+    /**
+     * Connects to the server and, if configured, agrees on compression of file bodies. A server
+     * that does not support the method leaves bodies uncompressed.
+     */
+    private Transport initializeTransport(int localPort) throws IOException {
+        Transport connection = connect(localPort);
+        if (CompressedTransport.NONE.equals(compression)) {
+            return connection;
+        }
+        CompressedTransport compressed = new CompressedTransport(connection);
+        try {
+            compressed.send("compress " + compression);
+            compressed.setEnabled(("COMPRESS " + compression).equalsIgnoreCase(compressed.receive()));
+        } catch (IOException e) {
+            compressed.close();
+            throw e;
+        }
+        return compressed;
+    }
+
+    /**
+     * Asks the server to take requests on the main connection as {@link ServerProtocol} frames,
+     * so a small file goes up or down in a single exchange. Range streams keep text commands.
+     */
+    private static boolean negotiateFrames(Transport connection) throws IOException {
+        connection.send("protocol " + ServerProtocol.BINARY);
+        return ("PROTOCOL " + ServerProtocol.BINARY).equalsIgnoreCase(connection.receive());
+    }
+
+    /**
+     * Starts a text exchange: as a COMMAND frame on a framed main connection, as a plain message
+     * otherwise.
+     */
+    private void sendCommand(Transport stream, String command) throws IOException {
+        if (framed && stream == transport) {
+            ServerProtocol.send(stream, ServerProtocol.COMMAND, ++requestIds, command);
+        } else {
+            stream.send(command);
+        }
+    }
+
+    /**
+     * Receives the reply to a frame request, checking that it answers that request.
+     */
+    private ServerProtocol.Frame receiveReply(int requestId, ServerProtocol.DataSink sink) throws IOException {
+        ServerProtocol.Frame reply = ServerProtocol.receive(transport, sink);
+        if (reply.requestId != requestId) {
+            throw new IOException("Reply to request " + reply.requestId + " while waiting for " + requestId);
+        }
+        return reply;
+    }
+
+    private Transport connect(int localPort) throws IOException {
         switch (protocol) {
             case "tcp":
-                Socket socket = initializeSocket();
+                Socket socket = initializeSocket(localPort);
                 return new tcp_transport(socket);
             case "snw":
                 InetAddress serverInetAddress = InetAddress.getByName(serverAddress);
-                return new snw_transport(serverInetAddress, serverPort, clientPort);
+                return new snw_transport(serverInetAddress, serverPort, localPort, snwWindowSize, snwChunkSize);
             default:
                 throw new IllegalArgumentException("Unknown protocol: " + protocol);
         }
     }
 
-    private Socket initializeSocket() throws IOException {
-        Socket socket = new Socket();
-        if (clientPort > 0) {
-            socket.bind(new InetSocketAddress(clientPort));
+    private Socket initializeSocket(int localPort) throws IOException {
+        Socket socket = SocketChannel.open().socket();
+        if (localPort > 0) {
+            // The fixed client port may still be in TIME_WAIT from a previous session
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(localPort));
         }
         socket.connect(new InetSocketAddress(serverAddress, serverPort));
         return socket;
@@ -52,14 +272,18 @@ public class client {
             while ((command = console.readLine()) != null) {
                 if (command.equalsIgnoreCase("quit")) {
                     System.out.println("Exiting client.");
-                    transport.send("quit");
+                    sendCommand(transport, "quit");
                     break;
                 } else if (command.startsWith("put ")) {
                     handlePut(command.substring(4).trim());
                 } else if (command.startsWith("get ")) {
                     handleGet(command.substring(4).trim());
+                } else if (command.startsWith("mput ")) {
+                    handleMultiPut(command.substring(5).trim());
+                } else if (command.startsWith("mget ")) {
+                    handleMultiGet(command.substring(5).trim());
                 } else {
-                    transport.send(command);
+                    sendCommand(transport, command);
                     String response = transport.receive();
                     System.out.println(response);
                 }
@@ -68,6 +292,12 @@ public class client {
         } catch (IOException e) {
             System.err.println("Error during client operation: " + e.getMessage());
         } finally {
+            if (rangeExecutor != null) {
+                rangeExecutor.shutdown();
+            }
+            if (caches != null) {
+                caches.close();
+            }
             try {
                 transport.close();
             } catch (IOException e) {
@@ -83,60 +313,930 @@ public class client {
             return;
         }
 
-        try {
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            forget(filename);
+            long size = channel.size();
+            String checksum = Checksums.crc32c(channel, 0, size);
+            if (streams > 1 && size >= PARALLEL_THRESHOLD) {
+                handleParallelPut(filename, filePath, size, checksum);
+                return;
+            } else if (size >= DEDUP_THRESHOLD) {
+                handleDedupPut(filename, channel, size, checksum);
+                return;
+            } else if (framed) {
+                handleFramedPut(filename, channel, size, checksum);
+                return;
+            }
+
             transport.send("put " + filename);
             String response = transport.receive();
-            if ("READY".equalsIgnoreCase(response)) {
-                byte[] data = Files.readAllBytes(filePath);
-                transport.send(String.valueOf(data.length));
-                response = transport.receive();
-                if (!"SIZE_RECEIVED".equalsIgnoreCase(response)) {
-                    System.out.println("Server did not acknowledge file size.");
+            if (!"READY".equalsIgnoreCase(response)) {
+                System.out.println("Server response: " + response);
+                return;
+            }
+            // The checksum lets the server keep and resume an interrupted upload of this content
+            transport.send(size + " " + checksum);
+            response = transport.receive();
+            if (!response.toUpperCase().startsWith("SIZE_RECEIVED")) {
+                System.out.println("Server did not acknowledge file size.");
+                return;
+            }
+            String[] acknowledged = response.split(" ");
+            long offset = acknowledged.length > 1 ? Long.parseLong(acknowledged[1]) : 0;
+            if (offset > 0) {
+                System.out.println("Resuming upload at byte " + offset + ".");
+            }
+            channel.position(offset);
+            transport.sendFrom(channel, size - offset);
+
+            String serverResponse = transport.receive();
+            if ("UPLOAD_SUCCESS".equalsIgnoreCase(serverResponse)) {
+                System.out.println("File uploaded successfully.");
+            } else {
+                System.out.println("Server response: " + serverResponse);
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Error during file upload: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Uploads a small file in a single PUT frame and reads the one reply frame.
+     */
+    private void handleFramedPut(String filename, FileChannel channel, long size, String checksum) throws IOException {
+        int requestId = ++requestIds;
+        channel.position(0);
+        ServerProtocol.send(transport, ServerProtocol.PUT, (byte) 0, requestId, checksum + " " + filename, channel, size);
+        ServerProtocol.Frame reply = receiveReply(requestId, null);
+        if (reply.opcode == ServerProtocol.OK) {
+            System.out.println("File uploaded successfully.");
+        } else {
+            System.out.println("Server response: " + reply.meta);
+        }
+    }
+
+    /**
+     * Handles {@code get <file>} and {@code get <file> <offset> <length>}. A whole file is
+     * downloaded to {@code <file>.part} and renamed once its checksum matches; if a
+     * {@code .part} file is already there, only the missing bytes are fetched. If
+     * {@code client_files} or the local cache already holds the file, the server sends it only if
+     * its version differs.
+     */
+    private void handleGet(String arguments) {
+        String[] parts = arguments.split(" ");
+        int count = parts.length;
+        if (count >= 3 && parts[count - 2].matches("\\d{1,18}") && parts[count - 1].matches("\\d{1,18}")) {
+            String filename = arguments.substring(0, arguments.lastIndexOf(' ', arguments.lastIndexOf(' ') - 1)).trim();
+            handleGetRange(filename, Long.parseLong(parts[count - 2]), Long.parseLong(parts[count - 1]));
+            return;
+        }
+
+        String filename = arguments;
+        Path destination = Paths.get("client_files", filename);
+        Path partial = Paths.get("client_files", filename + ".part");
+        try {
+            Files.createDirectories(destination.getParent());
+            long present = Files.exists(partial) ? Files.size(partial) : 0;
+            String served = present == 0 ? serveLocally(filename, partial, destination) : null;
+            if (served != null) {
+                System.out.println(served);
+                return;
+            }
+            String local = present == 0 ? version(filename, destination) : null;
+            if (present > 0 || streams > 1) {
+                RemoteFile remote = stat(filename);
+                if (remote != null && remote.checksum.equals(local)) {
+                    reportUpToDate(filename, partial, destination);
+                    return;
+                } else if (remote != null && present > 0 && present <= remote.size
+                        && resumeGet(filename, partial, destination, present, remote)) {
+                    return;
+                }
+                Files.deleteIfExists(partial);
+                if (remote != null && streams > 1 && remote.size >= PARALLEL_THRESHOLD) {
+                    handleParallelGet(filename, partial, destination, remote);
                     return;
                 }
-                transport.sendFile(data);
-                String serverResponse = transport.receive();
-                if ("UPLOAD_SUCCESS".equalsIgnoreCase(serverResponse)) {
-                    System.out.println("File uploaded successfully.");
+            }
+
+            Delivery delivery;
+            boolean verified;
+            try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                delivery = framed ? receiveFramed(filename, local, channel) : receiveText(filename, channel);
+                verified = delivery != null && delivery != Delivery.NOT_MODIFIED
+                        && Checksums.crc32c(channel, 0, channel.size()).equals(delivery.checksum);
+            }
+            if (delivery == Delivery.NOT_MODIFIED) {
+                Files.delete(partial);
+                reportUpToDate(filename, partial, destination);
+                return;
+            } else if (!verified) {
+                Files.delete(partial);
+                if (delivery != null) {
+                    System.out.println("Checksum mismatch; download discarded.");
+                }
+                return;
+            }
+            Files.move(partial, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            delivered(filename, destination);
+            switch (delivery.source.toLowerCase()) {
+                case "server":
+                    System.out.println("File delivered from server.");
+                    break;
+                case "cache":
+                    System.out.println("File delivered from cache.");
+                    break;
+                default:
+                    System.out.println("File delivered from unknown source.");
+                    break;
+            }
+        } catch (IOException e) {
+            System.err.println("Error during file retrieval: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Downloads a whole file with the {@code get} command. Returns {@code null}, having said why,
+     * if the server sends no file.
+     */
+    private Delivery receiveText(String filename, FileChannel channel) throws IOException {
+        transport.send("get " + filename);
+        String response = transport.receive();
+        if (!"READY".equalsIgnoreCase(response)) {
+            System.out.println(response.startsWith("ERROR:") ? "File not found." : "Unexpected server response.");
+            return null;
+        }
+        String source = transport.receive();
+        transport.receiveTo(channel);
+        return new Delivery(source, Checksums.parse(transport.receive()));
+    }
+
+    /**
+     * Downloads a whole file with a GET frame, answered by a single FILE frame. With the
+     * checksum of a local copy, the server answers NOT_MODIFIED instead if that copy is current.
+     * Returns {@code null}, having said why, if the server sends no file.
+     */
+    private Delivery receiveFramed(String filename, String local, FileChannel channel) throws IOException {
+        int requestId = ++requestIds;
+        sendGet(requestId, filename, local);
+        ServerProtocol.Frame reply = receiveReply(requestId, frame -> frame.opcode == ServerProtocol.FILE ? channel : null);
+        if (reply.opcode == ServerProtocol.NOT_MODIFIED) {
+            return Delivery.NOT_MODIFIED;
+        } else if (reply.opcode != ServerProtocol.FILE) {
+            System.out.println(reply.opcode == ServerProtocol.ERROR ? "File not found." : "Unexpected server response.");
+            return null;
+        }
+        String[] meta = reply.meta.split(" ", 2);
+        if (reply.hasFlag(ServerProtocol.FLAG_CHECKSUM_FOLLOWS)) {
+            ServerProtocol.Frame trailer = receiveReply(requestId, null);
+            return new Delivery(meta[0], trailer.opcode == ServerProtocol.CHECKSUM ? trailer.meta : null);
+        }
+        return new Delivery(meta[0], meta.length > 1 ? meta[1] : null);
+    }
+
+    /**
+     * Sends a GET frame, conditional on the checksum of the local copy if there is one.
+     */
+    private void sendGet(int requestId, String filename, String local) throws IOException {
+        if (local != null) {
+            ServerProtocol.send(transport, ServerProtocol.GET, ServerProtocol.FLAG_IF_NONE_MATCH, requestId,
+                    local + " " + filename, null, 0);
+        } else {
+            ServerProtocol.send(transport, ServerProtocol.GET, requestId, filename);
+        }
+    }
+
+    /**
+     * The checksum of the copy of a file in {@code client_files}, which serves as its version,
+     * or {@code null} if there is none.
+     */
+    private static String localChecksum(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return Checksums.crc32c(channel, 0, channel.size());
+        }
+    }
+
+    /**
+     * The version of a file this client holds: that of the local cache if it has the file, that
+     * of the copy in {@code client_files} otherwise; {@code null} if there is neither.
+     */
+    private String version(String filename, Path destination) throws IOException {
+        String cached = localCache != null ? localCache.checksum(filename) : null;
+        return cached != null ? cached : localChecksum(destination);
+    }
+
+    /**
+     * Serves a whole file without the server: from the local cache if the server confirmed it
+     * recently, or straight from the cache node that holds it. Returns what to report, or
+     * {@code null} if the server has to be asked.
+     */
+    private String serveLocally(String filename, Path partial, Path destination) throws IOException {
+        if (localCache != null && localCache.isFresh(filename) && localCache.restore(filename, partial, destination)) {
+            return "File delivered from local cache.";
+        }
+        return caches != null ? readFromCache(filename, partial, destination) : null;
+    }
+
+    /**
+     * Reads a whole file from the cache node that holds it, so the server sends no data. The
+     * server's invalidations may be lost, so the version the cache holds is first confirmed
+     * with a {@code stat}, and a stale copy is dropped from the cache. The data is then verified
+     * against that checksum. Returns {@code null} on a miss, a stale copy or if the cache cannot
+     * be reached, so the server is asked instead and fills the cache for the next read.
+     */
+    private String readFromCache(String filename, Path partial, Path destination) throws IOException {
+        RemoteFile remote = stat(filename);
+        if (remote == null) {
+            return null;
+        } else if (remote.checksum.equals(version(filename, destination))) {
+            return upToDate(filename, partial, destination) ? "File is up to date." : null;
+        }
+        boolean verified;
+        try (CacheClient.CachedFile cached = caches.get(filename)) {
+            if (cached == null) {
+                return null;
+            } else if (!remote.checksum.equals(cached.checksum())) {
+                caches.invalidate(filename);
+                return null;
+            }
+            long size = cached.size();
+            try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long received = 0;
+                for (long transferred; received < size; received += transferred) {
+                    if ((transferred = channel.transferFrom(cached.body(), received, size - received)) <= 0) {
+                        break;
+                    }
+                }
+                verified = received == size && Checksums.crc32c(channel, 0, size).equals(remote.checksum);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(partial);
+            return null;
+        }
+        if (!verified) {
+            Files.delete(partial);
+            return null;
+        }
+        Files.move(partial, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        delivered(filename, destination);
+        return "File delivered directly from cache.";
+    }
+
+    /**
+     * Brings {@code client_files} up to date once the version this client holds has been
+     * confirmed as current: restores the local cache's copy, or keeps the copy in
+     * {@code client_files} in the local cache. Returns {@code false} if the local cache has
+     * meanwhile lost the version that was confirmed.
+     */
+    private boolean upToDate(String filename, Path partial, Path destination) throws IOException {
+        if (localCache == null) {
+            return true;
+        } else if (localCache.checksum(filename) == null) {
+            localCache.put(filename, destination);
+            return true;
+        } else if (!localCache.restore(filename, partial, destination)) {
+            localCache.remove(filename);
+            return false;
+        }
+        localCache.validated(filename);
+        return true;
+    }
+
+    private void reportUpToDate(String filename, Path partial, Path destination) throws IOException {
+        if (upToDate(filename, partial, destination)) {
+            System.out.println("File is up to date.");
+        } else {
+            System.out.println("Local cache no longer holds the file; downloading it again.");
+            handleGet(filename);
+        }
+    }
+
+    /**
+     * Keeps a verified download in the local cache, if there is one. A failure only costs the
+     * next GET its shortcut.
+     */
+    private void delivered(String filename, Path destination) {
+        if (localCache == null) {
+            return;
+        }
+        try {
+            localCache.put(filename, destination);
+        } catch (IOException e) {
+            System.err.println("Could not keep '" + filename + "' in the local cache: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drops a file this client is about to upload from the local cache, which would otherwise
+     * serve the previous version.
+     */
+    private void forget(String filename) throws IOException {
+        if (localCache != null) {
+            localCache.remove(filename);
+        }
+    }
+
+    /**
+     * Fetches the bytes missing from an interrupted download and publishes the file if the
+     * whole of it matches the server's checksum. Returns {@code false} if it does not.
+     */
+    private boolean resumeGet(String filename, Path partial, Path destination, long present, RemoteFile remote) throws IOException {
+        System.out.println("Resuming download at byte " + present + ".");
+        boolean complete;
+        try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (present < remote.size) {
+                fetchRange(transport, filename, channel, present, remote.size - present);
+            }
+            complete = Checksums.crc32c(channel, 0, remote.size).equals(remote.checksum);
+        }
+        if (!complete) {
+            // The partial file belongs to an older version of the file
+            System.out.println("Partial download is out of date; downloading the whole file.");
+            return false;
+        }
+        Files.move(partial, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        delivered(filename, destination);
+        System.out.println("File delivered from server.");
+        return true;
+    }
+
+    /**
+     * Fetches only the given bytes of a file and writes them in place in {@code client_files}.
+     */
+    private void handleGetRange(String filename, long offset, long length) {
+        Path destination = Paths.get("client_files", filename);
+        try {
+            Files.createDirectories(destination.getParent());
+            try (FileChannel channel = FileChannel.open(destination, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                String source = fetchRange(transport, filename, channel, offset, length);
+                System.out.println("Bytes " + offset + "-" + (offset + length) + " delivered from " + source + ".");
+            }
+        } catch (IOException e) {
+            System.err.println("Error during file retrieval: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Requests a range with {@code get <file> <offset> <length>}, writes it at {@code offset}
+     * and verifies its checksum. Returns where the server took the range from.
+     */
+    private String fetchRange(Transport stream, String filename, FileChannel channel, long offset, long length)
+            throws IOException {
+        sendCommand(stream, "get " + filename + " " + offset + " " + length);
+        expect(stream, "READY");
+        String source = stream.receive();
+        channel.position(offset);
+        long received = stream.receiveTo(channel);
+        String checksum = Checksums.parse(stream.receive());
+        if (received != length) {
+            throw new IOException("Expected " + length + " bytes but received " + received);
+        } else if (!Checksums.crc32c(channel, offset, length).equals(checksum)) {
+            throw new IOException("Checksum mismatch for bytes " + offset + "-" + (offset + length));
+        }
+        return source;
+    }
+
+    /**
+     * Handles {@code mput <files>}: uploads many files without waiting for each reply. Files
+     * below {@link #DEDUP_THRESHOLD} go out as pipelined PUT frames; larger ones, and every file
+     * if the server does not take frames, are uploaded one at a time as by {@code put}.
+     */
+    private void handleMultiPut(String arguments) {
+        try {
+            List<PipelinedRequest> batch = new ArrayList<>();
+            List<String> sequential = new ArrayList<>();
+            for (String filename : expandNames(arguments)) {
+                Path filePath = Paths.get("client_files", filename);
+                if (!Files.isRegularFile(filePath)) {
+                    System.out.println(filename + ": File does not exist.");
+                } else if (framed && Files.size(filePath) < DEDUP_THRESHOLD) {
+                    batch.add(new PipelinedPut(filename));
                 } else {
-                    System.out.println("Server response: " + serverResponse);
+                    sequential.add(filename);
                 }
-            } else {
-                System.out.println("Server response: " + response);
+            }
+            if (!batch.isEmpty()) {
+                long start = System.nanoTime();
+                int uploaded = runPipelined(batch);
+                System.out.println("Uploaded " + uploaded + " of " + batch.size() + " files in "
+                        + (System.nanoTime() - start) / 1000000 + " ms.");
+            }
+            for (String filename : sequential) {
+                System.out.println(filename + ":");
+                handlePut(filename);
             }
         } catch (IOException e) {
             System.err.println("Error during file upload: " + e.getMessage());
         }
     }
 
-    private void handleGet(String filename) {
+    /**
+     * Handles {@code mget <files>}: downloads many files as pipelined GET frames, each written
+     * to its {@code .part} file as its reply arrives. Files already in {@code client_files} or the
+     * local cache are only sent if they changed on the server, and files the local cache or a
+     * cache node can serve are not asked for at all. Files with a {@code .part} left to resume, and
+     * every file if the server does not take frames, are downloaded one at a time as by
+     * {@code get}.
+     */
+    private void handleMultiGet(String arguments) {
         try {
-            transport.send("get " + filename);
-            String response = transport.receive();
-            if ("READY".equalsIgnoreCase(response)) {
-                String deliverySource = transport.receive();
-                byte[] data = transport.receiveFile();
-                Path destination = Paths.get("client_files", filename);
+            List<PipelinedGet> batch = new ArrayList<>();
+            List<String> sequential = new ArrayList<>();
+            int local = 0;
+            for (String filename : expandNames(arguments)) {
+                Path partial = Paths.get("client_files", filename + ".part");
+                if (!framed || Files.exists(partial)) {
+                    sequential.add(filename);
+                } else if (serveLocally(filename, partial, Paths.get("client_files", filename)) != null) {
+                    local++;
+                } else {
+                    batch.add(new PipelinedGet(filename));
+                }
+            }
+            if (local > 0) {
+                System.out.println(local + " files served without the server.");
+            }
+            if (!batch.isEmpty()) {
+                long start = System.nanoTime();
+                int succeeded = runPipelined(batch);
+                int current = 0;
+                for (PipelinedGet get : batch) {
+                    if (get.notModified) {
+                        current++;
+                    }
+                }
+                System.out.println("Downloaded " + (succeeded - current) + " of " + batch.size() + " files in "
+                        + (System.nanoTime() - start) / 1000000 + " ms" + (current > 0 ? "; " + current + " were up to date." : "."));
+            }
+            for (String filename : sequential) {
+                System.out.println(filename + ":");
+                handleGet(filename);
+            }
+        } catch (IOException e) {
+            System.err.println("Error during file retrieval: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Expands the arguments of {@code mput} and {@code mget} into file names relative to
+     * {@code client_files}: a directory there stands for every file under it, and a glob
+     * pattern for the files it matches. Any other argument is taken as a file name.
+     */
+    private static List<String> expandNames(String arguments) throws IOException {
+        Path root = Paths.get("client_files");
+        Set<String> names = new LinkedHashSet<>();
+        for (String argument : arguments.split("\\s+")) {
+            if (argument.isEmpty()) {
+                continue;
+            }
+            Path directory = root.resolve(argument);
+            boolean pattern = argument.matches(".*[*?\\[{].*");
+            if (!pattern && !Files.isDirectory(directory)) {
+                names.add(argument);
+                continue;
+            }
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + argument);
+            try (Stream<Path> files = Files.walk(pattern ? root : directory)) {
+                files.filter(Files::isRegularFile)
+                        .map(file -> root.relativize(file))
+                        .filter(name -> !pattern || matcher.matches(name))
+                        .map(name -> name.toString().replace(root.getFileSystem().getSeparator(), "/"))
+                        .filter(name -> !name.endsWith(".part"))
+                        .sorted()
+                        .forEach(names::add);
+            }
+        }
+        if (names.isEmpty()) {
+            System.out.println("No files match.");
+        }
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * Sends the requests of a batch on the main connection, keeping up to
+     * {@link #PIPELINE_WINDOW} in flight, and matches replies to requests by their ID. Returns
+     * how many requests succeeded.
+     */
+    private int runPipelined(List<? extends PipelinedRequest> batch) throws IOException {
+        // SNW cannot take a reply while it is still sending the next request
+        int window = "tcp".equals(protocol) ? PIPELINE_WINDOW : 1;
+        Map<Integer, PipelinedRequest> inFlight = new HashMap<>();
+        int next = 0;
+        int succeeded = 0;
+        try {
+            while (next < batch.size() || !inFlight.isEmpty()) {
+                if (next < batch.size() && inFlight.size() < window) {
+                    PipelinedRequest request = batch.get(next++);
+                    int requestId = ++requestIds;
+                    inFlight.put(requestId, request);
+                    if (!request.send(requestId)) {
+                        inFlight.remove(requestId);
+                        request.close();
+                    }
+                    continue;
+                }
+                ServerProtocol.Frame reply = ServerProtocol.receive(transport, frame -> {
+                    PipelinedRequest request = inFlight.get(frame.requestId);
+                    return request != null ? request.sink(frame) : null;
+                });
+                PipelinedRequest request = inFlight.get(reply.requestId);
+                if (request == null) {
+                    throw new IOException("Reply to unknown request " + reply.requestId);
+                }
+                if (request.receive(reply)) {
+                    inFlight.remove(reply.requestId);
+                    request.close();
+                    if (request.succeeded) {
+                        succeeded++;
+                    }
+                }
+            }
+        } finally {
+            for (PipelinedRequest request : inFlight.values()) {
+                request.close();
+            }
+        }
+        return succeeded;
+    }
+
+    private class PipelinedPut extends PipelinedRequest {
+        private final String filename;
+
+        PipelinedPut(String filename) {
+            this.filename = filename;
+        }
+
+        @Override
+        boolean send(int requestId) throws IOException {
+            FileChannel channel;
+            long size;
+            String checksum;
+            try {
+                channel = FileChannel.open(Paths.get("client_files", filename), StandardOpenOption.READ);
+            } catch (IOException e) {
+                System.out.println(filename + ": File does not exist.");
+                return false;
+            }
+            try (FileChannel file = channel) {
+                forget(filename);
+                size = file.size();
+                checksum = Checksums.crc32c(file, 0, size);
+                file.position(0);
+                ServerProtocol.send(transport, ServerProtocol.PUT, (byte) 0, requestId, checksum + " " + filename, file, size);
+            }
+            return true;
+        }
+
+        @Override
+        boolean receive(ServerProtocol.Frame frame) {
+            succeeded = frame.opcode == ServerProtocol.OK;
+            if (!succeeded) {
+                System.out.println(filename + ": " + frame.meta);
+            }
+            return true;
+        }
+    }
+
+    private class PipelinedGet extends PipelinedRequest {
+        private final String filename;
+        private final Path partial;
+        private final Path destination;
+        private FileChannel channel;
+        private String source;
+        boolean notModified;
+
+        PipelinedGet(String filename) {
+            this.filename = filename;
+            this.partial = Paths.get("client_files", filename + ".part");
+            this.destination = Paths.get("client_files", filename);
+        }
+
+        @Override
+        boolean send(int requestId) throws IOException {
+            String local;
+            try {
                 Files.createDirectories(destination.getParent());
-                Files.write(destination, data);
-                switch (deliverySource.toLowerCase()) {
-                    case "server":
-                        System.out.println("File delivered from server.");
-                        break;
-                    case "cache":
-                        System.out.println("File delivered from cache.");
-                        break;
-                    default:
-                        System.out.println("File delivered from unknown source.");
-                        break;
+                local = version(filename, destination);
+                channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            } catch (IOException e) {
+                System.out.println(filename + ": Cannot write " + partial + ": " + e.getMessage());
+                return false;
+            }
+            sendGet(requestId, filename, local);
+            return true;
+        }
+
+        @Override
+        WritableByteChannel sink(ServerProtocol.Frame frame) {
+            return frame.opcode == ServerProtocol.FILE ? channel : null;
+        }
+
+        @Override
+        boolean receive(ServerProtocol.Frame frame) {
+            if (frame.opcode == ServerProtocol.FILE) {
+                String[] meta = frame.meta.split(" ", 2);
+                source = meta[0];
+                if (frame.hasFlag(ServerProtocol.FLAG_CHECKSUM_FOLLOWS)) {
+                    return false;
                 }
-            } else if (response.startsWith("ERROR:")) {
-                System.out.println("File not found.");
+                finish(meta.length > 1 ? meta[1] : null);
+            } else if (frame.opcode == ServerProtocol.CHECKSUM && source != null) {
+                finish(frame.meta);
+            } else if (frame.opcode == ServerProtocol.NOT_MODIFIED) {
+                notModified = true;
+                current();
             } else {
-                System.out.println("Unexpected server response.");
+                System.out.println(filename + ": " + (frame.opcode == ServerProtocol.ERROR
+                        ? "File not found." : "Unexpected server response."));
+            }
+            return true;
+        }
+
+        private void finish(String checksum) {
+            try {
+                boolean verified = Checksums.crc32c(channel, 0, channel.size()).equals(checksum);
+                channel.close();
+                if (!verified) {
+                    System.out.println(filename + ": Checksum mismatch; download discarded.");
+                    return;
+                }
+                Files.move(partial, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                delivered(filename, destination);
+                succeeded = true;
+            } catch (IOException e) {
+                System.out.println(filename + ": " + e.getMessage());
+            }
+        }
+
+        private void current() {
+            try {
+                channel.close();
+                succeeded = upToDate(filename, partial, destination);
+                if (!succeeded) {
+                    System.out.println(filename + ": Local cache no longer holds the file; get it again.");
+                }
+            } catch (IOException e) {
+                System.out.println(filename + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+            if (!succeeded || notModified) {
+                Files.deleteIfExists(partial);
             }
+        }
+    }
+
+    /**
+     * Size and checksum of a file on the server, or {@code null} if the server does not have it.
+     */
+    private RemoteFile stat(String filename) throws IOException {
+        sendCommand(transport, "stat " + filename);
+        String[] response = transport.receive().split(" ");
+        if (response.length < 4 || !"SIZE".equals(response[0])) {
+            return null;
+        }
+        return new RemoteFile(Long.parseLong(response[1]), response[3]);
+    }
+
+    /**
+     * Uploads a file as content-defined chunks and sends only those the server does not hold:
+     * a file the server has under another name, or the unchanged parts of an edited file, are
+     * not sent again, and a retried upload skips the chunks that arrived before it failed.
+     */
+    private void handleDedupPut(String filename, FileChannel channel, long size, String checksum) throws IOException {
+        channel.position(0);
+        List<ChunkStore.Chunk> chunks = ChunkStore.chunks(channel, size);
+        sendCommand(transport, "putdedup " + size + " " + checksum + " " + filename);
+        String response = transport.receive();
+        if (!"READY".equalsIgnoreCase(response)) {
+            System.out.println("Server response: " + response);
+            return;
+        }
+        ByteArrayOutputStream list = new ByteArrayOutputStream();
+        ChunkStore.writeChunks(new DataOutputStream(list), chunks);
+        transport.sendFrom(new ByteBufferChannel(ByteBuffer.wrap(list.toByteArray())), list.size());
+        response = transport.receive();
+        if (!response.startsWith("MISSING ")) {
+            System.out.println("Server response: " + response);
+            return;
+        }
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        transport.receiveTo(Channels.newChannel(reply));
+        ByteBuffer indices = ByteBuffer.wrap(reply.toByteArray());
+
+        long[] offsets = new long[chunks.size()];
+        for (int i = 1; i < offsets.length; i++) {
+            offsets[i] = offsets[i - 1] + chunks.get(i - 1).length();
+        }
+        // Runs of adjacent missing chunks are read as one range
+        List<long[]> ranges = new ArrayList<>();
+        int missing = indices.remaining() / 4;
+        long missingBytes = 0;
+        while (indices.remaining() >= 4) {
+            int index = indices.getInt();
+            if (index < 0 || index >= chunks.size()) {
+                throw new IOException("Server asked for chunk " + index + " of " + chunks.size());
+            }
+            long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && last[0] + last[1] == offsets[index]) {
+                last[1] += chunks.get(index).length();
+            } else {
+                ranges.add(new long[] {offsets[index], chunks.get(index).length()});
+            }
+            missingBytes += chunks.get(index).length();
+        }
+        if (ranges.size() == 1) {
+            channel.position(ranges.get(0)[0]);
+            transport.sendFrom(channel, missingBytes);
+        } else {
+            transport.sendFrom(rangeReader(channel, ranges), missingBytes);
+        }
+
+        String serverResponse = transport.receive();
+        if ("UPLOAD_SUCCESS".equalsIgnoreCase(serverResponse)) {
+            System.out.println("File uploaded successfully; sent " + missing + " of " + chunks.size()
+                    + " chunks (" + missingBytes + " of " + size + " bytes).");
+        } else {
+            System.out.println("Server response: " + serverResponse);
+        }
+    }
+
+    /**
+     * Reads the given {offset, length} ranges of a file one after another.
+     */
+    private static ReadableByteChannel rangeReader(FileChannel file, List<long[]> ranges) {
+        return new ReadableByteChannel() {
+            private int range;
+            private long position = ranges.isEmpty() ? 0 : ranges.get(0)[0];
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                while (range < ranges.size() && position == ranges.get(range)[0] + ranges.get(range)[1]) {
+                    range++;
+                    position = range < ranges.size() ? ranges.get(range)[0] : position;
+                }
+                if (range == ranges.size()) {
+                    return -1;
+                }
+                long available = ranges.get(range)[0] + ranges.get(range)[1] - position;
+                int limit = dst.limit();
+                if (dst.remaining() > available) {
+                    dst.limit(dst.position() + (int) available);
+                }
+                int read;
+                try {
+                    read = file.read(dst, position);
+                } finally {
+                    dst.limit(limit);
+                }
+                if (read > 0) {
+                    position += read;
+                }
+                return read;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return file.isOpen();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Uploads a large file as ranges over several streams at once. The server writes each range
+     * in place into a preallocated file and publishes it once every range has arrived.
+     */
+    private void handleParallelPut(String filename, Path filePath, long size, String checksum) throws IOException {
+        sendCommand(transport, "putbegin " + size + " " + checksum + " " + filename);
+        String response = transport.receive();
+        if (!response.startsWith("READY ")) {
+            System.out.println("Server response: " + response);
+            return;
+        }
+        String uploadId = response.substring(6);
+
+        IOException failure = null;
+        try {
+            transferRanges(size, (stream, offset, length) -> {
+                try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+                    stream.send("putrange " + uploadId + " " + offset + " " + length);
+                    expect(stream, "READY");
+                    channel.position(offset);
+                    stream.sendFrom(channel, length);
+                    stream.send(Checksums.message(Checksums.crc32c(channel, offset, length)));
+                    expect(stream, "RANGE_RECEIVED");
+                }
+            });
         } catch (IOException e) {
-            System.err.println("Error during file retrieval: " + e.getMessage());
+            failure = e;
+        }
+        // Commit even after a failed range, so the server discards the partial upload
+        sendCommand(transport, "putcommit " + uploadId);
+        String serverResponse = transport.receive();
+        if (failure != null) {
+            throw failure;
+        } else if ("UPLOAD_SUCCESS".equalsIgnoreCase(serverResponse)) {
+            System.out.println("File uploaded successfully over " + streams + " streams.");
+        } else {
+            System.out.println("Server response: " + serverResponse);
+        }
+    }
+
+    /**
+     * Downloads a large file as ranges over several streams at once, each written in place into
+     * a file preallocated to the full size.
+     */
+    private void handleParallelGet(String filename, Path partial, Path destination, RemoteFile remote) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(partial.toFile(), "rw")) {
+            file.setLength(remote.size);
+        }
+
+        boolean complete = false;
+        try {
+            transferRanges(remote.size, (stream, offset, length) -> {
+                try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    fetchRange(stream, filename, channel, offset, length);
+                }
+            });
+            try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.READ)) {
+                complete = Checksums.crc32c(channel, 0, remote.size).equals(remote.checksum);
+            }
+        } finally {
+            // A preallocated file with holes cannot be resumed
+            if (!complete) {
+                Files.deleteIfExists(partial);
+            }
+        }
+        if (!complete) {
+            System.out.println("Checksum mismatch; download discarded.");
+            return;
+        }
+        Files.move(partial, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        delivered(filename, destination);
+        System.out.println("File delivered from server over " + streams + " streams.");
+    }
+
+    /**
+     * Splits {@code size} bytes into one range per stream and transfers them concurrently, each
+     * on a new connection or SNW session. Throws the first failure once every range has ended.
+     */
+    private void transferRanges(long size, RangeTransfer rangeTransfer) throws IOException {
+        if (rangeExecutor == null) {
+            rangeExecutor = Executors.newFixedThreadPool(streams);
+        }
+        long rangeSize = (size + streams - 1) / streams;
+        List<Future<Void>> ranges = new ArrayList<>();
+        for (long offset = 0; offset < size; offset += rangeSize) {
+            long rangeOffset = offset;
+            long length = Math.min(rangeSize, size - offset);
+            ranges.add(rangeExecutor.submit(() -> {
+                try (Transport stream = initializeTransport(0)) {
+                    rangeTransfer.transfer(stream, rangeOffset, length);
+                    stream.send("quit");
+                }
+                return null;
+            }));
+        }
+
+        IOException failure = null;
+        for (Future<Void> range : ranges) {
+            try {
+                range.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof IOException
+                            ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for file ranges");
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static void expect(Transport stream, String expected) throws IOException {
+        String response = stream.receive();
+        if (!expected.equalsIgnoreCase(response)) {
+            throw new IOException("Server response: " + response);
         }
     }
 
@@ -146,10 +1246,10 @@ public class client {
             clientInstance.start();
         } catch (IllegalArgumentException e) {
             System.err.println(e.getMessage());
-            System.out.println("Usage: java client [server ip] [server port] [client port] [protocol]");
+            System.out.println("Usage: java client [server ip] [server port] [cache ip[:port],...] [cache port] [protocol] [snw window] [client port] [snw chunk size] [streams] [deflate/none] [local cache MB] [server/cache]");
         } catch (IOException e) {
             System.err.println("IO Exception occurred while starting the client: " + e.getMessage());
-            System.out.println("Usage: java client [server ip] [server port] [client port] [protocol]");
+            System.out.println("Usage: java client [server ip] [server port] [cache ip[:port],...] [cache port] [protocol] [snw window] [client port] [snw chunk size] [streams] [deflate/none] [local cache MB] [server/cache]");
         }
     }
 
@@ -161,6 +1261,12 @@ public class client {
 
         int clientPort = 20001;
         String protocol = "tcp";
+        int snwWindowSize = snw_transport.DEFAULT_WINDOW_SIZE;
+        int snwChunkSize = snw_transport.AUTO_CHUNK_SIZE;
+        int streams = 1;
+        String compression = CompressedTransport.NONE;
+        long localCacheSize = 0;
+        String readFrom = READ_FROM_SERVER;
 
         if (args.length >= 1) {
             serverIp = args[0];
@@ -177,6 +1283,31 @@ public class client {
         if (args.length >= 5) {
             protocol = args[4];
         }
-        return new client(clientPort, serverIp, serverPort, protocol);
+        if (args.length >= 6) {
+            snwWindowSize = Integer.parseInt(args[5]);
+        }
+        if (args.length >= 7) {
+            clientPort = Integer.parseInt(args[6]);
+        }
+        if (args.length >= 8) {
+            snwChunkSize = Integer.parseInt(args[7]);
+        }
+        if (args.length >= 9) {
+            streams = Integer.parseInt(args[8]);
+        }
+        if (args.length >= 10) {
+            compression = args[9];
+        }
+        if (args.length >= 11) {
+            localCacheSize = Long.parseLong(args[10]) * 1024 * 1024;
+        }
+        if (args.length >= 12) {
+            readFrom = args[11].toLowerCase();
+            if (!readFrom.equals(READ_FROM_SERVER) && !readFrom.equals(READ_FROM_CACHE)) {
+                throw new IllegalArgumentException("Unknown read path: " + args[11]);
+            }
+        }
+        return new client(clientPort, serverIp, serverPort, protocol, snwWindowSize, snwChunkSize, streams, compression,
+                localCacheSize, readFrom.equals(READ_FROM_CACHE) ? cacheIp : null, cachePort);
     }
 }
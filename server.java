@@ -1,30 +1,406 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class server {
+    // Files up to this size are loaded once and shared by concurrent GETs
+    private static final long SHARED_LOAD_LIMIT = 8L * 1024 * 1024;
+    // Pipelined requests of one session served at once; further frames wait to be read
+    private static final int MAX_PIPELINED = 64;
+    // Parallel uploads one session may have open at once, and the largest size one may announce
+    private static final int MAX_OPEN_UPLOADS = 8;
+    private static final long MAX_UPLOAD_SIZE = Long.getLong("transporter.maxUploadMB", 64 * 1024) * 1024 * 1024;
+
+    private static final Metrics.Histogram GET_LATENCY = Metrics.histogram("server_get", "Time to serve a GET of a whole file");
+    private static final Metrics.Histogram GET_RANGE_LATENCY = Metrics.histogram("server_get_range", "Time to serve a GET of a range");
+    private static final Metrics.Histogram PUT_LATENCY = Metrics.histogram("server_put", "Time to receive and store an upload");
+    private static final Metrics.Meter BYTES_SENT = Metrics.meter("server_bytes_sent", "File bytes sent to clients");
+    private static final Metrics.Meter BYTES_RECEIVED = Metrics.meter("server_bytes_received", "File bytes received from clients");
+    private static final Metrics.Counter CACHE_HITS = Metrics.counter("server_cache_hits", "Downloads served from the cache");
+    private static final Metrics.Counter CACHE_MISSES = Metrics.counter("server_cache_misses", "Downloads the cache could not serve");
+    private static final Metrics.Counter CACHE_STALE = Metrics.counter("server_cache_stale",
+            "Cached copies not served because the server's file had been replaced or deleted");
+    private static final Metrics.Counter NOT_MODIFIED = Metrics.counter("server_not_modified",
+            "Conditional GETs answered without the file, as the client's copy was current");
+
+    /**
+     * Result of a shared load: the file contents and where they came from.
+     */
+    private static class SharedFile {
+        static final SharedFile NOT_FOUND = new SharedFile(null, null);
+        static final SharedFile TOO_LARGE = new SharedFile(null, null);
+
+        final String source;
+        final ByteBuffer data;
+        final String checksum;
+
+        SharedFile(String source, ByteBuffer data) {
+            this.source = source;
+            this.data = data;
+            this.checksum = data != null ? Checksums.crc32c(data) : null;
+        }
+    }
+
+    /**
+     * A file uploaded as ranges over several connections into one preallocated temporary file.
+     */
+    private static class ParallelUpload {
+        final String filename;
+        final Path tempPath;
+        final long size;
+        final String checksum;
+        final AtomicLong received = new AtomicLong();
+        final AtomicBoolean failed = new AtomicBoolean();
+        final long started = System.nanoTime();
+
+        ParallelUpload(String filename, Path tempPath, long size, String checksum) {
+            this.filename = filename;
+            this.tempPath = tempPath;
+            this.size = size;
+            this.checksum = checksum;
+        }
+    }
+
+    /**
+     * A client connection and what its two ends have agreed on: compression of bodies and,
+     * once switched to them, requests as {@link ServerProtocol} frames. On TCP, pipelined
+     * frames are served concurrently; replies are sent whole under the transport's lock.
+     */
+    private static class Session {
+        final CompressedTransport transport;
+        // Null for SNW, which cannot send and receive at the same time
+        final tcp_transport tcp;
+        // Parallel uploads begun on this connection and not yet committed
+        final Set<String> uploads = ConcurrentHashMap.newKeySet();
+        boolean framed;
+        private int pending;
+
+        Session(CompressedTransport transport, tcp_transport tcp) {
+            this.transport = transport;
+            this.tcp = tcp;
+        }
+
+        boolean hasInput() throws IOException {
+            return tcp != null && tcp.hasInput();
+        }
+
+        /**
+         * Runs a request on {@code executor}, or right away if the session cannot serve
+         * requests concurrently.
+         */
+        void submit(ExecutorService executor, Request request) throws IOException {
+            if (tcp == null) {
+                request.run();
+                return;
+            }
+            synchronized (this) {
+                try {
+                    while (pending >= MAX_PIPELINED) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for pipelined requests");
+                }
+                pending++;
+            }
+            executor.execute(() -> {
+                try {
+                    request.run();
+                } catch (IOException e) {
+                    // The reply could not be sent; closing makes the reading side give up too
+                    Log.error("Error handling TCP client: " + e.getMessage());
+                    try {
+                        transport.close();
+                    } catch (IOException ignored) {}
+                } finally {
+                    finished();
+                }
+            });
+        }
+
+        private synchronized void finished() {
+            pending--;
+            notifyAll();
+        }
+
+        /**
+         * Waits until every submitted request has sent its reply.
+         */
+        synchronized void drain() throws InterruptedIOException {
+            try {
+                while (pending > 0) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for pipelined requests");
+            }
+        }
+    }
+
+    private interface Request {
+        void run() throws IOException;
+    }
+
+    /**
+     * Where the data of a PUT frame goes: a temporary file, created once the frame's header
+     * has named the file.
+     */
+    private static class FrameUpload {
+        String filename;
+        String checksum;
+        Path tempPath;
+        FileChannel channel;
+
+        WritableByteChannel open(ServerProtocol.Frame frame) throws IOException {
+            String[] meta = frame.meta.split(" ", 2);
+            if (meta.length < 2 || !meta[0].matches("[0-9a-f]{8}")) {
+                return null;
+            }
+            if (!isValidName(meta[1])) {
+                return null;
+            }
+            checksum = meta[0];
+            filename = meta[1];
+            tempPath = Files.createTempFile(Paths.get("server_files"), ".upload-", ".tmp");
+            channel = FileChannel.open(tempPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return channel;
+        }
+
+        void discard() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+            if (tempPath != null) {
+                Files.deleteIfExists(tempPath);
+            }
+        }
+    }
+
+    /**
+     * How a GET is answered: with text messages around the body for the {@code get} command, or
+     * with a single {@link ServerProtocol#FILE} frame for a framed request.
+     */
+    private abstract static class Reply {
+        final Transport transport;
+
+        Reply(Transport transport) {
+            this.transport = transport;
+        }
+
+        boolean compressed() {
+            return transport instanceof CompressedTransport && ((CompressedTransport) transport).isEnabled();
+        }
+
+        /**
+         * Sends {@code size} bytes of {@code data}; a {@code null} checksum is computed on the way.
+         */
+        abstract void file(String source, ReadableByteChannel data, long size, String checksum) throws IOException;
+
+        /**
+         * Sends a file as the cache's deflated blocks, which only a compressed session accepts.
+         */
+        abstract void deflated(String source, ReadableByteChannel blocks, long size, String checksum) throws IOException;
+
+        /**
+         * Tells the client that its copy, with this checksum, is the current one.
+         */
+        abstract void notModified(String checksum) throws IOException;
+
+        abstract void error(String message) throws IOException;
+    }
+
+    private static class TextReply extends Reply {
+        TextReply(Transport transport) {
+            super(transport);
+        }
+
+        @Override
+        void file(String source, ReadableByteChannel data, long size, String checksum) throws IOException {
+            transport.send("READY");
+            transport.send(source);
+            if (checksum == null) {
+                Checksums.ChecksumChannel body = new Checksums.ChecksumChannel(data);
+                transport.sendFrom(body, size);
+                checksum = body.checksum();
+            } else {
+                transport.sendFrom(data, size);
+            }
+            transport.send(Checksums.message(checksum));
+        }
+
+        @Override
+        void deflated(String source, ReadableByteChannel blocks, long size, String checksum) throws IOException {
+            transport.send("READY");
+            transport.send(source);
+            ((CompressedTransport) transport).sendEncoded(blocks);
+            transport.send(Checksums.message(checksum));
+        }
+
+        @Override
+        void notModified(String checksum) throws IOException {
+            transport.send("NOT_MODIFIED " + checksum);
+        }
+
+        @Override
+        void error(String message) throws IOException {
+            transport.send("ERROR: " + message);
+        }
+    }
+
+    private static class FrameReply extends Reply {
+        final int requestId;
+
+        FrameReply(Transport transport, int requestId) {
+            super(transport);
+            this.requestId = requestId;
+        }
+
+        @Override
+        void file(String source, ReadableByteChannel data, long size, String checksum) throws IOException {
+            synchronized (transport) {
+                if (checksum != null) {
+                    ServerProtocol.send(transport, ServerProtocol.FILE, (byte) 0, requestId, source + " " + checksum, data, size);
+                    return;
+                }
+                Checksums.ChecksumChannel body = new Checksums.ChecksumChannel(data);
+                ServerProtocol.send(transport, ServerProtocol.FILE, ServerProtocol.FLAG_CHECKSUM_FOLLOWS, requestId, source, body, size);
+                ServerProtocol.send(transport, ServerProtocol.CHECKSUM, requestId, body.checksum());
+            }
+        }
+
+        @Override
+        void deflated(String source, ReadableByteChannel blocks, long size, String checksum) throws IOException {
+            ByteBuffer header = ServerProtocol.header(ServerProtocol.FILE, (byte) 0, requestId, source + " " + checksum, size);
+            synchronized (transport) {
+                ((CompressedTransport) transport).sendEncoded(header, blocks);
+            }
+        }
+
+        @Override
+        void notModified(String checksum) throws IOException {
+            reply(transport, ServerProtocol.NOT_MODIFIED, requestId, checksum);
+        }
+
+        @Override
+        void error(String message) throws IOException {
+            reply(transport, ServerProtocol.ERROR, requestId, message);
+        }
+    }
+
     private final int port;
     private final int cachePort;
     private final String cacheIp;
     private final String protocol;
+    private final int snwWindowSize;
+    private final int snwChunkSize;
+    private final String coreMode;
+    // Port of the local metrics endpoint, 0 for JMX only
+    private final int metricsPort;
     private final ExecutorService executor;
-    private final CacheManager cacheManager;
+    // Serves pipelined GET and PUT frames of TCP sessions
+    private final ExecutorService requests;
+    private final CacheCluster caches;
+    private final CacheWriteBehind cacheFills;
+    // Received files, deduplicated; plain files put into server_files by hand are served too
+    private final ChunkStore store;
+    // Every file the server can serve, so lookups and misses need no file system calls
+    private final FileIndex files = new FileIndex();
+    private final SingleFlight<String, SharedFile> sharedLoads = new SingleFlight<>();
+    private final Map<String, ParallelUpload> parallelUploads = new ConcurrentHashMap<>();
+    private final AtomicLong uploadIds = new AtomicLong();
+    // Partial uploads being written right now; another upload of the same content starts afresh
+    private final Set<Path> activePartials = ConcurrentHashMap.newKeySet();
 
     public server(int port, String protocol, String cacheIp, int cachePort) throws IOException {
+        this(port, protocol, cacheIp, cachePort, snw_transport.DEFAULT_WINDOW_SIZE);
+    }
+
+    public server(int port, String protocol, String cacheIp, int cachePort, int snwWindowSize) throws IOException {
+        this(port, protocol, cacheIp, cachePort, snwWindowSize, ServerCore.SELECTOR);
+    }
+
+    public server(int port, String protocol, String cacheIp, int cachePort, int snwWindowSize, String coreMode) throws IOException {
+        this(port, protocol, cacheIp, cachePort, snwWindowSize, coreMode, snw_transport.AUTO_CHUNK_SIZE);
+    }
+
+    public server(int port, String protocol, String cacheIp, int cachePort, int snwWindowSize, String coreMode,
+                  int snwChunkSize) throws IOException {
+        this(port, protocol, cacheIp, cachePort, snwWindowSize, coreMode, snwChunkSize, 0);
+    }
+
+    public server(int port, String protocol, String cacheIp, int cachePort, int snwWindowSize, String coreMode,
+                  int snwChunkSize, int metricsPort) throws IOException {
+        this(port, protocol, cacheIp, cachePort, snwWindowSize, coreMode, snwChunkSize, metricsPort, CacheCluster.DEFAULT_REPLICAS);
+    }
+
+    /**
+     * @param cacheIp       the cache node, or a comma-separated list of {@code host[:port]} nodes
+     *                      to spread files across; a node without a port listens on {@code cachePort}
+     * @param cacheReplicas on how many cache nodes a file that is read often is kept
+     */
+    public server(int port, String protocol, String cacheIp, int cachePort, int snwWindowSize, String coreMode,
+                  int snwChunkSize, int metricsPort, int cacheReplicas) throws IOException {
         this.port = port;
         this.protocol = protocol.toLowerCase();
         this.cacheIp = cacheIp;
         this.cachePort = cachePort;
-        this.cacheManager = new CacheManager("server_files");
-        this.executor = Executors.newCachedThreadPool();
+        this.snwWindowSize = snwWindowSize;
+        this.snwChunkSize = snwChunkSize;
+        this.coreMode = coreMode.toLowerCase();
+        this.metricsPort = metricsPort;
+        // SNW sessions hold their thread for the whole session; only the TCP core parks idle clients.
+        // Sessions are capped like TCP connections, so the pool never needs more threads than that
+        this.executor = ServerCore.newWorkerPool(this.coreMode, ServerCore.DEFAULT_MAX_CONNECTIONS, "snw-session");
+        this.requests = ServerCore.newWorkerPool(this.coreMode, ServerCore.DEFAULT_WORKERS, "request");
+        this.caches = new CacheCluster(cacheIp, cachePort, CacheClient.DEFAULT_POOL_SIZE, cacheReplicas);
+        this.cacheFills = new CacheWriteBehind(caches, CacheWriteBehind.DEFAULT_QUEUE_CAPACITY, CacheWriteBehind.DEFAULT_WORKERS);
+        this.store = new ChunkStore(Paths.get("server_files", ".store"));
     }
 
     public void start() throws IOException {
         Files.createDirectories(Paths.get("server_files"));
+        indexFiles();
+        Metrics.gauge("server_indexed_files", "Files the server holds", files::size);
+        Metrics.gauge("server_cache_hit_ratio", "Share of downloads served from the cache", () -> {
+            double lookups = CACHE_HITS.get() + CACHE_MISSES.get();
+            return lookups == 0 ? 0 : CACHE_HITS.get() / lookups;
+        });
+        Metrics.gauge("server_cache_fills", "Files stored in the cache after a miss", cacheFills::stored);
+        Metrics.gauge("server_cache_fills_failed", "Cache fills and invalidations that failed", cacheFills::failed);
+        Metrics.gauge("server_cache_fills_dropped", "Cache fills skipped because the queue was full", cacheFills::dropped);
+        Metrics.gauge("server_cache_fills_coalesced", "Cache fills merged into one already queued for the same file",
+                cacheFills::coalesced);
+        Metrics.gauge("server_cache_nodes", "Cache nodes on the hash ring, i.e. that can be reached", caches::liveNodes);
+        Metrics.gauge("server_cache_invalidations", "Files dropped from the cache after an upload or change by hand",
+                cacheFills::invalidated);
+        Metrics.publish(metricsPort);
         if ("tcp".equalsIgnoreCase(protocol)) {
             startTCPServer();
         } else if ("snw".equalsIgnoreCase(protocol)) {
@@ -35,171 +411,957 @@ public class server {
     }
 
     private void startTCPServer() throws IOException {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Server started on port " + port + " using protocol: " + protocol.toUpperCase());
-            while (true) {
+        // Sockets accepted through a channel let tcp_transport use sendfile for file bodies
+        try (ServerCore core = new ServerCore("server", port, coreMode, ServerCore.DEFAULT_WORKERS,
+                ServerCore.DEFAULT_MAX_CONNECTIONS, ServerCore.DEFAULT_BACKLOG, this::openTCPClient)) {
+            Metrics.gauge("server_active_connections", "Open client connections", core::activeConnections);
+            Log.info("Server started on port " + port + " using protocol: " + protocol.toUpperCase());
+            core.run();
+        }
+    }
+
+    private void startSNWServer() throws IOException {
+        // One UDP socket; every client gets its own session, handled concurrently on the executor
+        try (SnwDemultiplexer demultiplexer = new SnwDemultiplexer(port, snwWindowSize, snwChunkSize,
+                ServerCore.DEFAULT_MAX_CONNECTIONS, executor, this::handleSNWClient)) {
+            Metrics.gauge("server_active_connections", "Open client sessions", demultiplexer::activeSessions);
+            Log.info("Server started on port " + port + " using protocol: " + protocol.toUpperCase());
+            demultiplexer.run();
+        }
+    }
+
+    /**
+     * Wraps an accepted connection so the core can serve it one command at a time and park it
+     * while the client is idle.
+     */
+    private ServerCore.Connection openTCPClient(SocketChannel channel) throws IOException {
+        tcp_transport transport = new tcp_transport(channel.socket());
+        Session session = new Session(new CompressedTransport(transport), transport);
+        return new ServerCore.Connection() {
+            @Override
+            public boolean serve() throws IOException {
                 try {
-                    Socket clientSocket = serverSocket.accept();
-                    executor.execute(() -> handleTCPClient(clientSocket));
+                    return server.this.serve(session);
                 } catch (IOException e) {
-                    System.err.println("Failed to accept client connection.");
+                    Log.error("Error handling TCP client: " + e.getMessage());
+                    throw e;
                 }
             }
+
+            @Override
+            public boolean hasBufferedInput() {
+                return transport.hasBufferedInput();
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    discardUploads(session);
+                } finally {
+                    session.transport.close();
+                }
+            }
+        };
+    }
+
+    private void handleSNWClient(Transport transport) {
+        Session session = new Session(new CompressedTransport(transport), null);
+        try {
+            while (serve(session)) {
+                // Serve requests until the client quits
+            }
+        } catch (IOException e) {
+            Log.error("Error handling SNW client: " + e.getMessage());
+        } finally {
+            discardUploads(session);
         }
     }
 
-    private void startSNWServer() {
-        System.out.println("Server started on port " + port + " using protocol: " + protocol.toUpperCase());
-        executor.execute(() -> handleSNWClient());
+    /**
+     * Drops the parallel uploads a closed session left uncommitted, with their temporary files.
+     */
+    private void discardUploads(Session session) {
+        for (String id : session.uploads) {
+            ParallelUpload upload = parallelUploads.remove(id);
+            if (upload == null) {
+                continue;
+            }
+            Log.warn("Discarding uncommitted upload of '" + upload.filename + "'");
+            try {
+                Files.deleteIfExists(upload.tempPath);
+            } catch (IOException e) {
+                Log.error("Cannot delete " + upload.tempPath + ": " + e.getMessage());
+            }
+        }
+        session.uploads.clear();
     }
 
-    private void handleTCPClient(Socket socket) {
-        try (Transport transport = createTransport(socket)) {
-            handleClient(transport);
-        } catch (IOException e) {
-            System.err.println("Error handling TCP client: " + e.getMessage());
+    /**
+     * Serves the next request of a session, a frame or a text command depending on what the
+     * client asked for. Returns {@code false} once the client has quit.
+     */
+    private boolean serve(Session session) throws IOException {
+        if (session.framed) {
+            // Read every frame that is already waiting, then let the replies finish, since a
+            // parked connection is in non-blocking mode
+            boolean open;
+            try {
+                do {
+                    open = handleFrame(session);
+                } while (open && session.hasInput());
+            } finally {
+                session.drain();
+            }
+            return open;
+        }
+        String command = session.transport.receive();
+        if (command == null) {
+            return false;
+        } else if (command.startsWith("protocol ")) {
+            session.framed = ServerProtocol.BINARY.equalsIgnoreCase(command.substring(9).trim());
+            session.transport.send("PROTOCOL " + (session.framed ? ServerProtocol.BINARY : ServerProtocol.TEXT));
+            return true;
         }
+        return handleCommand(command, session);
     }
 
-    private void handleSNWClient() {
-        try (Transport transport = new snw_transport(port)) {
-            handleClient(transport);
+    /**
+     * Handles one request frame. PUT and GET complete in this one exchange and are served
+     * alongside other pipelined requests; any other command arrives as a COMMAND frame and
+     * continues as text once the requests before it are done. Returns {@code false} once the
+     * client has quit.
+     */
+    private boolean handleFrame(Session session) throws IOException {
+        Transport transport = session.transport;
+        FrameUpload upload = new FrameUpload();
+        ServerProtocol.Frame frame;
+        try {
+            frame = ServerProtocol.receive(transport,
+                    header -> header.opcode == ServerProtocol.PUT ? upload.open(header) : null);
         } catch (IOException e) {
-            System.err.println("Error handling SNW client: " + e.getMessage());
+            upload.discard();
+            throw e;
+        }
+        switch (frame.opcode) {
+            case ServerProtocol.PUT:
+                session.submit(requests, () -> handleFramePut(frame, upload, transport));
+                return true;
+            case ServerProtocol.GET:
+                if (frame.hasFlag(ServerProtocol.FLAG_IF_NONE_MATCH)) {
+                    String[] meta = frame.meta.split(" ", 2);
+                    if (meta.length == 2) {
+                        session.submit(requests, () -> handleGet(meta[1], meta[0], new FrameReply(transport, frame.requestId)));
+                        return true;
+                    }
+                }
+                session.submit(requests, () -> handleGet(frame.meta, null, new FrameReply(transport, frame.requestId)));
+                return true;
+            case ServerProtocol.COMMAND:
+                session.drain();
+                return handleCommand(frame.meta, session);
+            default:
+                Log.warn("Received unknown request: " + frame.opcode);
+                session.drain();
+                reply(transport, ServerProtocol.ERROR, frame.requestId, "Unknown request");
+                return true;
+        }
+    }
+
+    /**
+     * Stores a file that arrived whole in a PUT frame, the way clients send small files. There
+     * is nothing to resume, so the upload takes a single exchange.
+     */
+    private void handleFramePut(ServerProtocol.Frame frame, FrameUpload upload, Transport transport) throws IOException {
+        long started = System.nanoTime();
+        try {
+            if (upload.channel == null) {
+                reply(transport, ServerProtocol.ERROR, frame.requestId, "Malformed upload request.");
+                return;
+            }
+            Log.debug("Received PUT request for: " + upload.filename);
+            if (!Checksums.crc32c(upload.channel, 0, frame.length).equals(upload.checksum)) {
+                Log.warn("Error during file upload: checksum mismatch for '" + upload.filename + "'");
+                reply(transport, ServerProtocol.ERROR, frame.requestId, "Checksum mismatch for '" + upload.filename + "'.");
+                return;
+            }
+            upload.channel.close();
+            save(upload.filename, upload.tempPath);
+            BYTES_RECEIVED.add(frame.length);
+        } finally {
+            upload.discard();
+            PUT_LATENCY.recordSince(started);
         }
+        reply(transport, ServerProtocol.OK, frame.requestId, "UPLOAD_SUCCESS");
+        Log.debug("File '" + upload.filename + "' received and saved.");
     }
 
-    private void handleClient(Transport transport) throws IOException {
-        String command;
-        while ((command = transport.receive()) != null) {
-            if ("quit".equalsIgnoreCase(command)) {
-                System.out.println("Client has disconnected.");
-                break;
-            } else if (command.startsWith("put ")) {
-                handlePut(command.substring(4).trim(), transport);
-            } else if (command.startsWith("get ")) {
-                handleGet(command.substring(4).trim(), transport);
+    /**
+     * Sends a reply frame without data, whole, between the replies of other pipelined requests.
+     */
+    private static void reply(Transport transport, byte opcode, int requestId, String message) throws IOException {
+        synchronized (transport) {
+            ServerProtocol.send(transport, opcode, requestId, message);
+        }
+    }
+
+    /**
+     * Handles one client command. Returns {@code false} once the client has quit.
+     */
+    private boolean handleCommand(String command, Session session) throws IOException {
+        Transport transport = session.transport;
+        if ("quit".equalsIgnoreCase(command)) {
+            Log.debug("Client has disconnected.");
+            return false;
+        } else if (command.startsWith("put ")) {
+            String filename = command.substring(4).trim();
+            if (!isValidName(filename)) {
+                transport.send("ERROR: Invalid file name '" + filename + "'.");
+                return true;
+            }
+            handlePut(filename, transport);
+        } else if (command.startsWith("get ")) {
+            String arguments = command.substring(4).trim();
+            String[] parts = arguments.split(" ");
+            int count = parts.length;
+            if (count >= 3 && parts[count - 2].matches("\\d{1,18}") && parts[count - 1].matches("\\d{1,18}")) {
+                // get <file> <offset> <length>
+                String filename = arguments.substring(0, arguments.lastIndexOf(' ', arguments.lastIndexOf(' ') - 1)).trim();
+                handleGetRange(filename, Long.parseLong(parts[count - 2]), Long.parseLong(parts[count - 1]), transport);
             } else {
-                transport.send("Unknown command");
-                System.err.println("Received unknown command: " + command);
+                handleGet(arguments, null, new TextReply(transport));
             }
+        } else if (command.startsWith("stat ")) {
+            handleStat(command.substring(5).trim(), transport);
+        } else if (command.startsWith("putbegin ")) {
+            handlePutBegin(command.substring(9).trim(), session);
+        } else if (command.startsWith("putrange ")) {
+            handlePutRange(command.substring(9).trim(), transport);
+        } else if (command.startsWith("putcommit ")) {
+            handlePutCommit(command.substring(10).trim(), session);
+        } else if (command.startsWith("putdedup ")) {
+            handlePutDedup(command.substring(9).trim(), transport);
+        } else if (command.startsWith("compress ")) {
+            handleCompress(command.substring(9).trim(), transport);
+        } else {
+            transport.send("Unknown command");
+            Log.warn("Received unknown command: " + command);
+        }
+        return true;
+    }
+
+    /**
+     * Agrees on compression of file bodies for the rest of the session. The reply names the
+     * method both ends use from then on, {@code none} if the requested one is not supported.
+     */
+    private void handleCompress(String method, Transport transport) throws IOException {
+        boolean deflate = CompressedTransport.DEFLATE.equalsIgnoreCase(method) && transport instanceof CompressedTransport;
+        transport.send("COMPRESS " + (deflate ? CompressedTransport.DEFLATE : CompressedTransport.NONE));
+        if (transport instanceof CompressedTransport) {
+            ((CompressedTransport) transport).setEnabled(deflate);
         }
     }
 
+    /**
+     * Receives a file. A client that announces the file's checksum along with its size can
+     * resume: the bytes of an interrupted upload of the same content are kept in
+     * {@code server_files/.partial}, and the server replies with how many it already has.
+     */
     private void handlePut(String filename, Transport transport) {
-        System.out.println("Received PUT request for: " + filename);
+        Log.debug("Received PUT request for: " + filename);
+        long started = System.nanoTime();
+        Path partialPath = null;
         try {
             transport.send("READY");
-            String sizeStr = transport.receive();
-            long fileSize = Long.parseLong(sizeStr);
-            transport.send("SIZE_RECEIVED");
-            byte[] data = transport.receiveFile();
-            Path filePath = Paths.get("server_files", filename);
-            Files.write(filePath, data);
+            String[] announced = transport.receive().split(" ");
+            long fileSize = Long.parseLong(announced[0]);
+            String checksum = announced.length > 1 ? announced[1] : null;
+
+            if (checksum != null && checksum.matches("[0-9a-f]{8}")) {
+                Path partials = Files.createDirectories(Paths.get("server_files", ".partial"));
+                Path candidate = partials.resolve(checksum + "-" + fileSize);
+                if (activePartials.add(candidate)) {
+                    partialPath = candidate;
+                }
+            }
+            Path tempPath = partialPath != null ? partialPath : Files.createTempFile(Paths.get("server_files"), ".upload-", ".tmp");
+
+            // An upload cut off mid-transfer is kept for resuming; anything else is discarded
+            boolean interrupted = false;
+            try {
+                try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    long offset = Math.min(channel.size(), fileSize);
+                    channel.truncate(offset);
+                    transport.send("SIZE_RECEIVED " + offset);
+                    if (offset > 0) {
+                        Log.debug("Resuming upload of '" + filename + "' at byte " + offset);
+                    }
+
+                    channel.position(offset);
+                    long received;
+                    try {
+                        received = transport.receiveTo(channel);
+                    } catch (IOException e) {
+                        interrupted = partialPath != null;
+                        throw e;
+                    }
+                    BYTES_RECEIVED.add(received);
+                    if (received != fileSize - offset) {
+                        throw new IOException("expected " + (fileSize - offset) + " bytes but received " + received);
+                    }
+                    if (checksum != null && !checksum.equals(Checksums.crc32c(channel, 0, fileSize))) {
+                        Log.warn("Error during file upload: checksum mismatch for '" + filename + "'");
+                        transport.send("ERROR: Checksum mismatch for '" + filename + "'.");
+                        return;
+                    }
+                }
+                save(filename, tempPath);
+            } finally {
+                if (!interrupted) {
+                    Files.deleteIfExists(tempPath);
+                }
+            }
             transport.send("UPLOAD_SUCCESS");
-            System.out.println("File '" + filename + "' received and saved.");
+            Log.debug("File '" + filename + "' received and saved.");
         } catch (IOException | NumberFormatException e) {
-            System.err.println("Error during file upload: " + e.getMessage());
+            Log.error("Error during file upload: " + e.getMessage());
+        } finally {
+            if (partialPath != null) {
+                activePartials.remove(partialPath);
+            }
+            PUT_LATENCY.recordSince(started);
         }
     }
 
-    private void handleGet(String filename, Transport transport) {
-        System.out.println("Received GET request for: " + filename);
-        byte[] data = null;
-        String deliverySource = null;
-
-        data = getFileFromCache(filename);
-
-        if (data != null) {
-            deliverySource = "cache";
-            System.out.println("File delivered from cache.");
-        } else {
-            Path serverFilePath = Paths.get("server_files", filename);
-            if (Files.exists(serverFilePath)) {
-                try {
-                    data = Files.readAllBytes(serverFilePath);
-                    deliverySource = "server";
-                    System.out.println("File delivered from server.");
-                    storeFileInCache(filename, data);
-                } catch (IOException e) {
-                    System.err.println("Error reading file from server.");
-                }
+    /**
+     * Replies with the size and checksum of a file on the server, so a client can resume a
+     * partial download and verify the result.
+     */
+    private void handleStat(String filename, Transport transport) throws IOException {
+        FileIndex.Entry entry = files.get(filename);
+        if (entry != null && entry.checksum() != null) {
+            transport.send("SIZE " + entry.size() + " " + Checksums.message(entry.checksum()));
+            return;
+        }
+        try (SeekableByteChannel channel = entry != null ? openFile(filename) : null) {
+            if (channel != null) {
+                transport.send("SIZE " + channel.size() + " " + Checksums.message(checksum(filename, channel)));
             } else {
-                System.out.println("File not found on server: " + filename);
+                transport.send("ERROR: File '" + filename + "' not found on server.");
             }
         }
+    }
 
+    /**
+     * Sends {@code length} bytes of a file from {@code offset}, followed by their checksum. The
+     * cache serves the range if it holds the file, the server's own copy otherwise.
+     */
+    private void handleGetRange(String filename, long offset, long length, Transport transport) {
+        Log.debug("Received GET request for: " + filename + " bytes " + offset + "-" + (offset + length));
+        long started = System.nanoTime();
         try {
-            if (data != null) {
+            if (deliverRangeFromCache(filename, offset, length, transport)) {
+                Log.debug("File range delivered from cache.");
+                return;
+            }
+            try (SeekableByteChannel channel = openFile(filename)) {
+                if (channel == null) {
+                    Log.debug("File not found on server: " + filename);
+                    transport.send("ERROR: File '" + filename + "' not found on server.");
+                    return;
+                } else if (offset + length > channel.size()) {
+                    transport.send("ERROR: Range outside of file '" + filename + "'.");
+                    return;
+                }
                 transport.send("READY");
-                transport.send(deliverySource);
-                transport.sendFile(data);
-            } else {
-                transport.send("ERROR: File '" + filename + "' not found on server.");
+                transport.send("server");
+                channel.position(offset);
+                transport.sendFrom(channel, length);
+                transport.send(Checksums.message(Checksums.crc32c(channel, offset, length)));
             }
+            BYTES_SENT.add(length);
+            Log.debug("File range delivered from server.");
         } catch (IOException e) {
-            System.err.println("Error during file delivery: " + e.getMessage());
+            Log.error("Error during file delivery: " + e.getMessage());
+        } finally {
+            GET_RANGE_LATENCY.recordSince(started);
         }
     }
 
-    private byte[] getFileFromCache(String filename) {
-        System.out.println("Attempting to retrieve file from cache: " + filename);
-        try (Socket cacheSocket = new Socket(cacheIp, cachePort);
-             DataInputStream dataIn = new DataInputStream(new BufferedInputStream(cacheSocket.getInputStream()));
-             DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(cacheSocket.getOutputStream()))) {
+    private boolean deliverRangeFromCache(String filename, long offset, long length, Transport transport) throws IOException {
+        CacheClient.CachedFile cached;
+        try {
+            cached = caches.getRange(filename, offset, length);
+        } catch (IOException e) {
+            Log.warn("Error communicating with cache service: " + e.getMessage());
+            CACHE_MISSES.increment();
+            return false;
+        }
+        if (cached == null || !isCurrent(filename, cached)) {
+            if (cached != null) {
+                cached.close();
+            }
+            CACHE_MISSES.increment();
+            return false;
+        }
+        CACHE_HITS.increment();
+        try (CacheClient.CachedFile file = cached) {
+            Checksums.ChecksumChannel body = new Checksums.ChecksumChannel(file.body());
+            transport.send("READY");
+            transport.send("cache");
+            transport.sendFrom(body, file.size());
+            transport.send(Checksums.message(body.checksum()));
+        }
+        BYTES_SENT.add(cached.size());
+        return true;
+    }
+
+    /**
+     * Starts an upload sent as ranges over several connections. Arguments: size, checksum and
+     * file name. Replies with the upload id that the ranges and the commit refer to. The upload
+     * belongs to the session that began it and is discarded if that session closes first.
+     */
+    private void handlePutBegin(String arguments, Session session) throws IOException {
+        Transport transport = session.transport;
+        String[] parts = arguments.split(" ", 3);
+        long size;
+        try {
+            size = Long.parseLong(parts[0]);
+        } catch (NumberFormatException e) {
+            transport.send("ERROR: Malformed upload request.");
+            return;
+        }
+        if (parts.length < 3 || size < 0) {
+            transport.send("ERROR: Malformed upload request.");
+            return;
+        } else if (size > MAX_UPLOAD_SIZE) {
+            transport.send("ERROR: Upload of " + size + " bytes exceeds the limit of " + MAX_UPLOAD_SIZE + " bytes.");
+            return;
+        } else if (!isValidName(parts[2])) {
+            transport.send("ERROR: Invalid file name '" + parts[2] + "'.");
+            return;
+        } else if (session.uploads.size() >= MAX_OPEN_UPLOADS) {
+            transport.send("ERROR: Too many uploads in progress.");
+            return;
+        }
+        String filename = parts[2];
+        Log.debug("Received parallel PUT request for: " + filename);
+        Path tempPath = Files.createTempFile(Paths.get("server_files"), ".upload-", ".tmp");
+        try (RandomAccessFile file = new RandomAccessFile(tempPath.toFile(), "rw")) {
+            // Ranges are written in place, so the file is given its full length up front
+            file.setLength(size);
+        }
+        String id = String.valueOf(uploadIds.incrementAndGet());
+        parallelUploads.put(id, new ParallelUpload(filename, tempPath, size, parts[1]));
+        session.uploads.add(id);
+        transport.send("READY " + id);
+    }
+
+    /**
+     * Receives one range of a parallel upload, followed by its checksum. Arguments: upload id,
+     * offset and length.
+     */
+    private void handlePutRange(String arguments, Transport transport) throws IOException {
+        String[] parts = arguments.split(" ");
+        ParallelUpload upload = parallelUploads.get(parts[0]);
+        long offset;
+        long length;
+        try {
+            offset = Long.parseLong(parts[1]);
+            length = Long.parseLong(parts[2]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            transport.send("ERROR: Malformed range request.");
+            return;
+        }
+        if (upload == null) {
+            transport.send("ERROR: Unknown upload " + parts[0] + ".");
+            return;
+        } else if (offset < 0 || length < 0 || offset + length > upload.size) {
+            transport.send("ERROR: Range outside of file '" + upload.filename + "'.");
+            return;
+        }
+        transport.send("READY");
+        try (FileChannel channel = FileChannel.open(upload.tempPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.position(offset);
+            long received = transport.receiveTo(channel);
+            String checksum = Checksums.parse(transport.receive());
+            if (received != length) {
+                upload.failed.set(true);
+                transport.send("ERROR: expected " + length + " bytes but received " + received);
+                return;
+            } else if (!Checksums.crc32c(channel, offset, length).equals(checksum)) {
+                upload.failed.set(true);
+                transport.send("ERROR: Checksum mismatch for range at " + offset + ".");
+                return;
+            }
+        } catch (IOException e) {
+            upload.failed.set(true);
+            throw e;
+        }
+        upload.received.addAndGet(length);
+        BYTES_RECEIVED.add(length);
+        transport.send("RANGE_RECEIVED");
+    }
 
-            dataOut.writeUTF("GET " + filename);
-            dataOut.flush();
-            String response = dataIn.readUTF();
-            if ("FOUND".equals(response)) {
-                int size = dataIn.readInt();
-                byte[] data = new byte[size];
-                dataIn.readFully(data);
-                return data;
+    /**
+     * Completes a parallel upload once every range has arrived and the whole file matches its
+     * checksum, replacing the file atomically.
+     */
+    private void handlePutCommit(String id, Session session) throws IOException {
+        Transport transport = session.transport;
+        session.uploads.remove(id);
+        ParallelUpload upload = parallelUploads.remove(id);
+        if (upload == null) {
+            transport.send("ERROR: Unknown upload " + id + ".");
+            return;
+        }
+        try {
+            if (upload.failed.get() || upload.received.get() != upload.size) {
+                Log.error("Error during file upload: received " + upload.received.get() + " of "
+                        + upload.size + " bytes of '" + upload.filename + "'");
+                transport.send("ERROR: Upload of '" + upload.filename + "' is incomplete.");
+                return;
+            }
+            try (FileChannel channel = FileChannel.open(upload.tempPath, StandardOpenOption.READ)) {
+                if (!Checksums.crc32c(channel, 0, upload.size).equals(upload.checksum)) {
+                    Log.warn("Error during file upload: checksum mismatch for '" + upload.filename + "'");
+                    transport.send("ERROR: Checksum mismatch for '" + upload.filename + "'.");
+                    return;
+                }
+            }
+            save(upload.filename, upload.tempPath);
+        } finally {
+            Files.deleteIfExists(upload.tempPath);
+            PUT_LATENCY.recordSince(upload.started);
+        }
+        transport.send("UPLOAD_SUCCESS");
+        Log.debug("File '" + upload.filename + "' received and saved.");
+    }
+
+    /**
+     * Receives a file of which the client only sends the chunks the store lacks. Arguments:
+     * size, checksum and file name. The client sends the file's chunk list, the server replies
+     * with the indices of the missing chunks, and the client sends those chunks as one body.
+     * Chunks that arrived before an interruption are kept, so a retry sends only the rest.
+     */
+    private void handlePutDedup(String arguments, Transport transport) throws IOException {
+        String[] parts = arguments.split(" ", 3);
+        long size;
+        try {
+            size = Long.parseLong(parts[0]);
+        } catch (NumberFormatException e) {
+            transport.send("ERROR: Malformed upload request.");
+            return;
+        }
+        if (parts.length < 3 || size < 0 || !parts[1].matches("[0-9a-f]{8}")) {
+            transport.send("ERROR: Malformed upload request.");
+            return;
+        } else if (!isValidName(parts[2])) {
+            transport.send("ERROR: Invalid file name '" + parts[2] + "'.");
+            return;
+        }
+        String filename = parts[2];
+        Log.debug("Received deduplicated PUT request for: " + filename);
+        long started = System.nanoTime();
+        try {
+            transport.send("READY");
+
+            ByteArrayOutputStream list = new ByteArrayOutputStream();
+            transport.receiveTo(Channels.newChannel(list));
+            List<ChunkStore.Chunk> chunks = ChunkStore.readChunks(new DataInputStream(new ByteArrayInputStream(list.toByteArray())));
+            List<ChunkStore.Chunk> missing = new ArrayList<>();
+            List<Integer> indices = store.missing(chunks);
+            ByteBuffer reply = ByteBuffer.allocate(4 * indices.size());
+            long missingBytes = 0;
+            for (int index : indices) {
+                reply.putInt(index);
+                missing.add(chunks.get(index));
+                missingBytes += chunks.get(index).length();
+            }
+            reply.flip();
+            transport.send("MISSING " + indices.size());
+            transport.sendFrom(new ByteBufferChannel(reply), reply.remaining());
+
+            long received = transport.receiveTo(store.chunkWriter(missing));
+            BYTES_RECEIVED.add(received);
+            if (received != missingBytes) {
+                Log.error("Error during file upload: expected " + missingBytes + " bytes but received " + received);
+                transport.send("ERROR: Upload of '" + filename + "' is incomplete.");
+                return;
+            }
+            FileIndex.Entry replaced = files.get(filename);
+            try {
+                store.storeChunks(filename, size, parts[1], chunks);
+                indexStored(filename);
+            } catch (IOException e) {
+                // Either the chunks do not make up the announced file, or one of them was removed
+                // since it was reported present, in which case the client may simply retry
+                Log.error("Error during file upload: " + e.getMessage());
+                transport.send("ERROR: Upload of '" + filename + "' failed: " + e.getMessage() + ".");
+                return;
+            }
+            deletePlainCopy(replaced);
+            transport.send("UPLOAD_SUCCESS");
+            Log.debug("File '" + filename + "' received and saved; sent " + missing.size() + " of "
+                    + chunks.size() + " chunks, " + store.storedBytes() + " bytes stored in total.");
+        } finally {
+            PUT_LATENCY.recordSince(started);
+        }
+    }
+
+    /**
+     * Sends a whole file, unless {@code ifNoneMatch} is the checksum of the current version, in
+     * which case the client already holds it and is only told so.
+     */
+    private void handleGet(String filename, String ifNoneMatch, Reply reply) {
+        Log.debug("Received GET request for: " + filename);
+        long started = System.nanoTime();
+        try {
+            if (ifNoneMatch != null && ifNoneMatch.equals(currentChecksum(filename))) {
+                reply.notModified(ifNoneMatch);
+                NOT_MODIFIED.increment();
+                Log.debug("File not modified: " + filename);
+                return;
+            }
+            // Concurrent GETs for the same file share a single cache lookup or disk load
+            SharedFile shared = sharedLoads.execute(filename, () -> loadShared(filename));
+            if (shared == SharedFile.NOT_FOUND) {
+                Log.debug("File not found on server: " + filename);
+                reply.error("File '" + filename + "' not found on server.");
+            } else if (shared == SharedFile.TOO_LARGE) {
+                streamFile(filename, reply);
             } else {
-                System.out.println("File not found in cache: " + filename);
-                return null;
+                reply.file(shared.source, new ByteBufferChannel(shared.data), shared.data.limit(), shared.checksum);
+                BYTES_SENT.add(shared.data.limit());
+                Log.debug("File delivered from " + shared.source + ".");
+            }
+        } catch (IOException e) {
+            Log.error("Error during file delivery: " + e.getMessage());
+        } finally {
+            GET_LATENCY.recordSince(started);
+        }
+    }
+
+    /**
+     * Loads a file of at most {@link #SHARED_LOAD_LIMIT} bytes into memory, from the cache if it
+     * holds it and from the server's own copy otherwise, so it can be handed to every waiting GET.
+     */
+    private SharedFile loadShared(String filename) throws IOException {
+        Log.debug("Attempting to retrieve file from cache: " + filename);
+        try (CacheClient.CachedFile cached = caches.get(filename, SHARED_LOAD_LIMIT)) {
+            if (cached == null) {
+                Log.debug("File not found in cache: " + filename);
+            } else if (cached.body() == null) {
+                return SharedFile.TOO_LARGE;
+            } else if (isCurrent(filename, cached)) {
+                CACHE_HITS.increment();
+                return new SharedFile("cache", readFully(cached.body(), cached.size()));
             }
         } catch (IOException e) {
-            System.err.println("Error communicating with cache service: " + e.getMessage());
+            Log.warn("Error communicating with cache service: " + e.getMessage());
+        }
+
+        ByteBuffer data;
+        try (SeekableByteChannel channel = openFile(filename)) {
+            if (channel == null) {
+                CACHE_MISSES.increment();
+                return SharedFile.NOT_FOUND;
+            } else if (channel.size() > SHARED_LOAD_LIMIT) {
+                // Streamed, which asks the cache again
+                return SharedFile.TOO_LARGE;
+            }
+            data = readFully(channel, channel.size());
+        }
+        CACHE_MISSES.increment();
+        // Populate the cache in the background
+        cacheFills.submit(filename, () -> openFile(filename));
+        return new SharedFile("server", data);
+    }
+
+    private static ByteBuffer readFully(ReadableByteChannel source, long size) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate((int) size);
+        while (data.hasRemaining()) {
+            if (source.read(data) < 0) {
+                throw new EOFException("Source ended " + data.remaining() + " bytes before the announced size");
+            }
+        }
+        data.flip();
+        return data.asReadOnlyBuffer();
+    }
+
+    /**
+     * Streams a file too large to share in memory to this client alone.
+     */
+    private void streamFile(String filename, Reply reply) throws IOException {
+        if (deliverFromCache(filename, reply)) {
+            Log.debug("File delivered from cache.");
+            return;
+        }
+
+        try (SeekableByteChannel channel = openFile(filename)) {
+            if (channel == null) {
+                Log.debug("File not found on server: " + filename);
+                reply.error("File '" + filename + "' not found on server.");
+                return;
+            }
+            reply.file("server", channel, channel.size(), checksum(filename, channel));
+            BYTES_SENT.add(channel.size());
+        }
+        Log.debug("File delivered from server.");
+        // Populate the cache in the background, after the client has its file
+        cacheFills.submit(filename, () -> openFile(filename));
+    }
+
+    /**
+     * Opens a file for reading from the chunk store, or as a plain file in {@code server_files}.
+     * Returns {@code null} if the server has no such file.
+     */
+    private SeekableByteChannel openFile(String filename) throws IOException {
+        FileIndex.Entry entry = files.get(filename);
+        if (entry == null) {
+            return null;
+        } else if (entry.tier() == FileIndex.Tier.DISK) {
+            ChunkStore.ChunkChannel stored = store.open(filename);
+            if (stored == null) {
+                files.remove(entry);
+            }
+            return stored;
+        }
+        try {
+            return FileChannel.open(Paths.get("server_files", filename), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            files.remove(entry);
             return null;
         }
     }
 
-    private void storeFileInCache(String filename, byte[] data) {
-        System.out.println("Storing file in cache: " + filename);
-        try (Socket cacheSocket = new Socket(cacheIp, cachePort);
-             DataInputStream dataIn = new DataInputStream(new BufferedInputStream(cacheSocket.getInputStream()));
-             DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(cacheSocket.getOutputStream()))) {
+    /**
+     * The checksum of an open file: a stored file's from its manifest, a plain file's from the
+     * index once it has been computed.
+     */
+    private String checksum(String filename, SeekableByteChannel channel) throws IOException {
+        if (channel instanceof ChunkStore.ChunkChannel) {
+            return ((ChunkStore.ChunkChannel) channel).manifest().checksum();
+        }
+        FileIndex.Entry entry = files.get(filename);
+        if (entry != null && entry.checksum() != null) {
+            return entry.checksum();
+        }
+        String checksum = Checksums.crc32c(channel, 0, channel.size());
+        if (entry != null && entry.size() == channel.size()) {
+            files.replace(entry, entry.withChecksum(checksum));
+        }
+        return checksum;
+    }
 
-            dataOut.writeUTF("STORE " + filename);
-            dataOut.flush();
-            dataOut.writeInt(data.length);
-            dataOut.flush();
-            dataOut.write(data);
-            dataOut.flush();
-            String response = dataIn.readUTF();
-            if ("STORED".equals(response)) {
-                System.out.println("File '" + filename + "' stored in cache.");
-            } else {
-                System.err.println("Failed to store file '" + filename + "' in cache.");
+    /**
+     * The checksum of the current version of a file, or {@code null} if the server has no such
+     * file. Needs no I/O unless it is a plain file whose checksum has not been computed yet.
+     */
+    private String currentChecksum(String filename) throws IOException {
+        FileIndex.Entry entry = files.get(filename);
+        if (entry == null || entry.checksum() != null) {
+            return entry != null ? entry.checksum() : null;
+        }
+        try (SeekableByteChannel channel = openFile(filename)) {
+            return channel != null ? checksum(filename, channel) : null;
+        }
+    }
+
+    /**
+     * Whether a cached copy is the server's current version of the file. A stale copy, left by
+     * an upload or a change by hand that the cache has not yet been told about, is dropped from
+     * the cache rather than served.
+     */
+    private boolean isCurrent(String filename, CacheClient.CachedFile cached) throws IOException {
+        // A cache that sends no checksum cannot be checked
+        if (cached.checksum() == null || cached.checksum().equals(currentChecksum(filename))) {
+            return true;
+        }
+        Log.debug("Cached copy of '" + filename + "' is out of date.");
+        CACHE_STALE.increment();
+        cacheFills.invalidate(filename);
+        return false;
+    }
+
+    /**
+     * Keeps a received file in the chunk store, where it only takes the space of chunks that no
+     * other file holds, replacing any plain copy of it.
+     */
+    private void save(String filename, Path file) throws IOException {
+        FileIndex.Entry replaced = files.get(filename);
+        store.storeFile(filename, file);
+        indexStored(filename);
+        deletePlainCopy(replaced);
+    }
+
+    /**
+     * Deletes the plain file an upload has replaced, if the index listed one. Plain files are
+     * indexed by their names in {@code server_files}, so the path is never built from a name a
+     * client sent.
+     */
+    private static void deletePlainCopy(FileIndex.Entry replaced) throws IOException {
+        if (replaced != null && replaced.tier() == FileIndex.Tier.PLAIN) {
+            Files.deleteIfExists(Paths.get("server_files", replaced.name()));
+        }
+    }
+
+    /**
+     * Whether a file name sent by a client is a relative name that stays inside
+     * {@code server_files}: {@code /}-separated segments, none of them empty, {@code .} or
+     * {@code ..}, without backslashes, a drive letter or NUL characters.
+     */
+    private static boolean isValidName(String name) {
+        if (name.isEmpty() || name.indexOf('\\') >= 0 || name.indexOf('\0') >= 0 || name.matches("[A-Za-z]:.*")) {
+            return false;
+        }
+        for (String segment : name.split("/", -1)) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                return false;
             }
+        }
+        return true;
+    }
+
+    // Indexes a file just stored and drops any older version from the cache. The store's current
+    // version is read back under a lock, so concurrent uploads of one name leave the index with
+    // the version stored last
+    private void indexStored(String filename) {
+        synchronized (files) {
+            ChunkStore.Manifest manifest = store.manifest(filename);
+            if (manifest != null) {
+                files.put(FileIndex.Entry.of(manifest, FileIndex.Tier.DISK));
+            }
+        }
+        cacheFills.invalidate(filename);
+    }
+
+    /**
+     * Indexes the files in the chunk store and the plain files in {@code server_files}, and
+     * keeps watching the directory for plain files added, changed or deleted by hand.
+     */
+    private void indexFiles() throws IOException {
+        for (ChunkStore.Manifest manifest : store.manifests()) {
+            files.put(FileIndex.Entry.of(manifest, FileIndex.Tier.DISK));
+        }
+        Path directory = Paths.get("server_files");
+        // Watched before the scan, so no file slips in between
+        WatchService watcher = directory.getFileSystem().newWatchService();
+        directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        scanPlainFiles(directory);
+        Thread thread = new Thread(() -> watchPlainFiles(watcher, directory), "file-index");
+        thread.setDaemon(true);
+        thread.start();
+        Log.info("Indexed " + files.size() + " files.");
+    }
+
+    private void scanPlainFiles(Path directory) throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path file : entries) {
+                indexPlainFile(file.getFileName().toString());
+            }
+        }
+        for (FileIndex.Entry entry : files.entries()) {
+            if (entry.tier() == FileIndex.Tier.PLAIN) {
+                indexPlainFile(entry.name());
+            }
+        }
+    }
+
+    private void watchPlainFiles(WatchService watcher, Path directory) {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        scanPlainFiles(directory);
+                    } else {
+                        indexPlainFile(event.context().toString());
+                    }
+                }
+                if (!key.reset()) {
+                    Log.error("Stopped watching server_files for new files.");
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (IOException e) {
-            System.err.println("Error communicating with cache service: " + e.getMessage());
+            Log.error("Error watching server_files: " + e.getMessage());
         }
     }
 
-    private Transport createTransport(Socket socket) throws IOException {
-        switch (protocol) {
-            case "tcp":
-                return new tcp_transport(socket);
-            case "snw":
-                throw new UnsupportedOperationException("SNW protocol does not use Socket for server");
-            default:
-                System.err.println("Unknown protocol: " + protocol);
-                socket.close();
-                throw new IllegalArgumentException("Unknown protocol: " + protocol);
+    /**
+     * Brings the entry of a plain file up to date after it may have changed. Files in the chunk
+     * store take precedence, and names starting with a dot belong to the server itself.
+     */
+    private void indexPlainFile(String name) {
+        if (name.startsWith(".")) {
+            return;
+        }
+        FileIndex.Entry current = files.get(name);
+        if (current != null && current.tier() != FileIndex.Tier.PLAIN) {
+            return;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(Paths.get("server_files", name), BasicFileAttributes.class);
+            if (attributes.isRegularFile()) {
+                FileIndex.Entry entry = new FileIndex.Entry(name, attributes.size(),
+                        attributes.lastModifiedTime().toMillis(), null, FileIndex.Tier.PLAIN);
+                // Conditional, as an upload of the same name may have been indexed meanwhile
+                if (current == null) {
+                    files.putIfAbsent(entry);
+                } else if ((current.size() != entry.size() || current.modified() != entry.modified())
+                        && files.replace(current, entry)) {
+                    cacheFills.invalidate(name);
+                }
+                return;
+            }
+        } catch (NoSuchFileException e) {
+            // Deleted
+        } catch (IOException e) {
+            Log.warn("Cannot index '" + name + "': " + e.getMessage());
+        }
+        if (current != null && files.remove(current)) {
+            cacheFills.invalidate(name);
+        }
+    }
+
+    /**
+     * Streams the file from the cache straight to the client. A client that accepts compression
+     * is sent the cache's deflated copy as it is. Returns {@code false} if the cache does not
+     * hold the file or cannot be reached, before anything has been sent to the client.
+     */
+    private boolean deliverFromCache(String filename, Reply reply) throws IOException {
+        Log.debug("Attempting to retrieve file from cache: " + filename);
+        CacheClient.CachedFile cached;
+        try {
+            cached = reply.compressed() ? caches.getDeflated(filename) : caches.get(filename);
+        } catch (IOException e) {
+            Log.warn("Error communicating with cache service: " + e.getMessage());
+            CACHE_MISSES.increment();
+            return false;
         }
+        if (cached == null) {
+            Log.debug("File not found in cache: " + filename);
+            CACHE_MISSES.increment();
+            return false;
+        } else if (!isCurrent(filename, cached)) {
+            cached.close();
+            CACHE_MISSES.increment();
+            return false;
+        }
+        CACHE_HITS.increment();
+        try (CacheClient.CachedFile file = cached) {
+            if (file.isDeflated()) {
+                reply.deflated("cache", file.body(), file.size(), file.checksum());
+            } else {
+                reply.file("cache", file.body(), file.size(), file.checksum());
+            }
+        }
+        BYTES_SENT.add(cached.size());
+        return true;
     }
 
     public static void main(String[] args) {
@@ -208,10 +1370,10 @@ public class server {
             serverInstance.start();
         } catch (IllegalArgumentException e) {
             System.err.println(e.getMessage());
-            System.out.println("Usage: java server [port] [protocol] [cache ip] [cache port]");
+            System.out.println("Usage: java server [port] [protocol] [cache ip[:port],...] [cache port] [snw window] [selector/virtual] [snw chunk size] [metrics port] [cache replicas]");
         } catch (IOException e) {
             System.err.println("IO Exception occurred while starting the server: " + e.getMessage());
-            System.out.println("Usage: java server [port] [protocol] [cache ip] [cache port]");
+            System.out.println("Usage: java server [port] [protocol] [cache ip[:port],...] [cache port] [snw window] [selector/virtual] [snw chunk size] [metrics port] [cache replicas]");
         }
     }
 
@@ -220,6 +1382,11 @@ public class server {
         String protocol = "tcp";
         String cacheIp = "localhost";
         int cachePort = 20000;
+        int snwWindowSize = snw_transport.DEFAULT_WINDOW_SIZE;
+        String coreMode = ServerCore.SELECTOR;
+        int snwChunkSize = snw_transport.AUTO_CHUNK_SIZE;
+        int metricsPort = 0;
+        int cacheReplicas = CacheCluster.DEFAULT_REPLICAS;
 
         if (args.length >= 1) {
             port = Integer.parseInt(args[0]);
@@ -233,7 +1400,22 @@ public class server {
         if (args.length >= 4) {
             cachePort = Integer.parseInt(args[3]);
         }
+        if (args.length >= 5) {
+            snwWindowSize = Integer.parseInt(args[4]);
+        }
+        if (args.length >= 6) {
+            coreMode = args[5];
+        }
+        if (args.length >= 7) {
+            snwChunkSize = Integer.parseInt(args[6]);
+        }
+        if (args.length >= 8) {
+            metricsPort = Integer.parseInt(args[7]);
+        }
+        if (args.length >= 9) {
+            cacheReplicas = Integer.parseInt(args[8]);
+        }
 
-        return new server(port, protocol, cacheIp, cachePort);
+        return new server(port, protocol, cacheIp, cachePort, snwWindowSize, coreMode, snwChunkSize, metricsPort, cacheReplicas);
     }
 }
@@ -1,77 +1,393 @@
 import java.io.*;
 import java.net.*;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
+/**
+ * Reliable transfers over UDP. Packets are built in place in reusable direct buffers and sent on
+ * a {@link DatagramChannel}, so a steady-state file transfer allocates nothing per packet.
+ */
 public class snw_transport implements Transport {
-    private DatagramSocket socket;
-    private InetAddress remoteAddress;
-    private int remotePort;
-    private static final int CHUNK_SIZE = 1024;
-    private static final int TIMEOUT = 5000; // Increased timeout to 5000ms
-    private static final int MAX_RETRIES = 5;
+    private final DatagramChannel channel;
+    private InetSocketAddress remote;
+    // A client receiving a file gives up after this long without a datagram
+    private static final int TIMEOUT = 30000;
+    private static final int MAX_RETRIES = 15;
     private int sequenceNumber = 0;
+    // Sequence number of the last message returned by receive(); a retransmission of it, sent
+    // because our ACK was lost, is acknowledged again but not delivered twice
+    private int lastReceivedSequence = -1;
+
+    // Retransmission timeout bounds (RFC 6298, with a floor suited to LANs), in nanoseconds
+    private static final long INITIAL_RTO = TimeUnit.SECONDS.toNanos(1);
+    private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long MAX_RTO = TimeUnit.SECONDS.toNanos(4);
+    private static final long CLOCK_GRANULARITY = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // Smoothed round-trip time and its variation; srtt is 0 until the first sample
+    private long srtt;
+    private long rttvar;
+    private long rto = INITIAL_RTO;
+
+    // Congestion window in chunks, opened by slow start and then additively, halved on loss
+    private static final int INITIAL_CONGESTION_WINDOW = 2;
+    // A chunk is presumed lost once a chunk this many places after it is acknowledged
+    private static final int REORDER_THRESHOLD = 3;
+    private double congestionWindow;
+    private double slowStartThreshold;
+    private long retransmissions;
+    // Totals over every session of this process
+    private static final Metrics.Counter RETRANSMITS =
+            Metrics.counter("snw_retransmits", "SNW packets sent again after a timeout or a presumed loss");
+    private static final Metrics.Counter TIMEOUTS =
+            Metrics.counter("snw_timeouts", "SNW retransmission timeouts");
+
+    // Packet types
+    private static final byte DATA = 0;
+    private static final byte ACK = 1;
+    private static final byte CHUNK = 2;
+    private static final byte CHUNK_ACK = 3;
+
+    // Every packet starts with its type and a 4-byte sequence number or chunk index
+    private static final int HEADER_SIZE = 5;
+
+    // Number of file chunks allowed in flight; 1 is plain stop-and-wait
+    public static final int DEFAULT_WINDOW_SIZE = 16;
+    private static final int MAX_WINDOW_SIZE = 1024;
+    private final int windowSize;
+
+    // Chunk payload bytes assumed when the size header does not name a chunk size
+    private static final int DEFAULT_CHUNK_SIZE = 1024;
+    // Largest UDP payload over IPv4, less our header
+    private static final int MAX_CHUNK_SIZE = 65507 - HEADER_SIZE;
+    private static final int MIN_CHUNK_SIZE = 512;
+    // Pass as the chunk size to size chunks from the MTU of the interface facing the peer
+    public static final int AUTO_CHUNK_SIZE = 0;
+    // IP and UDP header bytes in front of each datagram, and the MTU assumed when it is unknown
+    private static final int IPV4_OVERHEAD = 28;
+    private static final int IPV6_OVERHEAD = 48;
+    private static final int DEFAULT_MTU = 1500;
+    // Chunk size used for transfers to our peer; AUTO_CHUNK_SIZE until the first transfer
+    private int chunkSize;
+
+    // Bytes of chunks in flight at most; large chunks get a correspondingly smaller window
+    private static final int MAX_WINDOW_BYTES = 4 * 1024 * 1024;
+    // Requested socket buffer size, so a full window is not dropped by the kernel
+    private static final int SOCKET_BUFFER_SIZE = MAX_WINDOW_BYTES;
+
+    // Longest message, such as a command or a size header
+    private static final int MAX_MESSAGE_SIZE = 1024;
+    private static final int MESSAGE_PACKET_SIZE = MAX_MESSAGE_SIZE + HEADER_SIZE;
+
+    // Largest datagram either side sends
+    static final int MAX_PACKET_SIZE = MAX_CHUNK_SIZE + HEADER_SIZE;
+
+    // A session on a shared socket gives up after this long without hearing from its peer
+    private static final int SESSION_IDLE_TIMEOUT = 10 * 60 * 1000;
+
+    // Receive timeout in ms; 0 waits forever
+    private int timeout;
+
+    // Outgoing messages, ACKs and the last received datagram with its sender
+    private final ByteBuffer messageBuffer = ByteBuffer.allocateDirect(MESSAGE_PACKET_SIZE);
+    private final ByteBuffer ackBuffer = ByteBuffer.allocateDirect(HEADER_SIZE);
+    private ByteBuffer packet = ByteBuffer.allocateDirect(MESSAGE_PACKET_SIZE);
+    private SocketAddress packetSender;
+
+    // One whole packet per window slot, kept across transfers, and the capacity of each
+    private ByteBuffer[] slots = new ByteBuffer[0];
+    private int slotSize;
+
+    // Waits for the channel with a timeout when we own it; null for a shared-socket session
+    private final Selector selector;
+    private final SelectionKey key;
+
+    // Datagrams from our peer when sharing a socket with other sessions, and where their buffers
+    // go back once read; null when we own the socket
+    private final BlockingQueue<ByteBuffer> inbox;
+    private final Consumer<ByteBuffer> releaseBuffer;
+    private final Runnable onClose;
 
     // Constructor for client-side (known remote address and port)
-    public snw_transport(InetAddress remoteAddress, int remotePort, int localPort) throws SocketException {
-        this.socket = new DatagramSocket(localPort);
-        this.remoteAddress = remoteAddress;
-        this.remotePort = remotePort;
-        this.socket.setSoTimeout(TIMEOUT);
+    public snw_transport(InetAddress remoteAddress, int remotePort, int localPort) throws IOException {
+        this(remoteAddress, remotePort, localPort, DEFAULT_WINDOW_SIZE);
+    }
+
+    public snw_transport(InetAddress remoteAddress, int remotePort, int localPort, int windowSize) throws IOException {
+        this(remoteAddress, remotePort, localPort, windowSize, AUTO_CHUNK_SIZE);
+    }
+
+    public snw_transport(InetAddress remoteAddress, int remotePort, int localPort, int windowSize, int chunkSize) throws IOException {
+        this(localPort, windowSize, chunkSize);
+        this.remote = new InetSocketAddress(remoteAddress, remotePort);
+        setTimeout(TIMEOUT);
     }
 
     // Constructor for server-side (unknown remote address and port initially)
-    public snw_transport(int localPort) throws SocketException {
-        this.socket = new DatagramSocket(localPort);
+    public snw_transport(int localPort) throws IOException {
+        this(localPort, DEFAULT_WINDOW_SIZE);
+    }
+
+    public snw_transport(int localPort, int windowSize) throws IOException {
+        this(localPort, windowSize, AUTO_CHUNK_SIZE);
+    }
+
+    public snw_transport(int localPort, int windowSize, int chunkSize) throws IOException {
+        this.windowSize = checkWindowSize(windowSize);
+        this.chunkSize = checkChunkSize(chunkSize);
+        this.channel = DatagramChannel.open();
+        configureBuffers(channel);
+        this.channel.bind(new InetSocketAddress(localPort));
+        this.channel.configureBlocking(false);
+        this.selector = Selector.open();
+        this.key = channel.register(selector, SelectionKey.OP_READ);
+        this.inbox = null;
+        this.releaseBuffer = null;
+        this.onClose = null;
         // No timeout on server-side
     }
 
-    private byte[] intToBytes(int value) {
-        return new byte[] {
-                (byte)(value >>> 24),
-                (byte)(value >>> 16),
-                (byte)(value >>> 8),
-                (byte)value
-        };
+    // Constructor for a server-side session sharing one socket with other peers; see SnwDemultiplexer
+    snw_transport(DatagramChannel channel, InetSocketAddress peer, BlockingQueue<ByteBuffer> inbox,
+                  Consumer<ByteBuffer> releaseBuffer, int windowSize, int chunkSize, Runnable onClose) {
+        this.channel = channel;
+        this.remote = peer;
+        this.windowSize = checkWindowSize(windowSize);
+        this.chunkSize = checkChunkSize(chunkSize);
+        this.selector = null;
+        this.key = null;
+        this.inbox = inbox;
+        this.releaseBuffer = releaseBuffer;
+        this.onClose = onClose;
+    }
+
+    /**
+     * Asks for socket buffers that hold a full window of large datagrams; the kernel may grant less.
+     */
+    static void configureBuffers(DatagramChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+    }
+
+    /**
+     * Whether a datagram from an unknown peer may open a new session: only messages do, so
+     * stray ACKs and chunks from a finished session are ignored.
+     */
+    static boolean opensSession(ByteBuffer datagram) {
+        return datagram.remaining() >= HEADER_SIZE && datagram.get(datagram.position()) == DATA;
+    }
+
+    private void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Receives the next datagram for this transport into {@link #packet}, flipped for reading,
+     * and records its sender. Throws {@link SocketTimeoutException} once the timeout expires.
+     */
+    private void receivePacket() throws IOException {
+        packet.clear();
+        if (inbox == null) {
+            long deadline = System.currentTimeMillis() + timeout;
+            while ((packetSender = channel.receive(packet)) == null) {
+                long wait = 0;
+                if (timeout > 0) {
+                    wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new SocketTimeoutException("Receive timed out");
+                    }
+                }
+                selector.select(wait);
+                selector.selectedKeys().clear();
+            }
+            packet.flip();
+            return;
+        }
+
+        ByteBuffer received;
+        try {
+            received = inbox.poll(timeout > 0 ? timeout : SESSION_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a datagram");
+        }
+        if (received == null && timeout > 0) {
+            throw new SocketTimeoutException("Receive timed out");
+        } else if (received == null) {
+            throw new IOException("SNW session idle for " + SESSION_IDLE_TIMEOUT + " ms");
+        }
+        // A datagram too large for the current transfer's buffers is stale; leave it as a runt
+        if (received.remaining() <= packet.capacity()) {
+            packet.put(received);
+        }
+        packet.flip();
+        releaseBuffer.accept(received);
+        packetSender = remote;
+    }
+
+    private void sendPacket(ByteBuffer datagram, SocketAddress target) throws IOException {
+        while (channel.send(datagram, target) == 0) {
+            // Only our own non-blocking channel can refuse a datagram: wait for buffer space
+            key.interestOps(SelectionKey.OP_WRITE);
+            try {
+                selector.select();
+                selector.selectedKeys().clear();
+            } finally {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    /**
+     * Folds one round-trip sample into the estimate (Jacobson/Karels) and recomputes the RTO,
+     * dropping any backoff. Only ACKs of packets sent once are sampled (Karn's algorithm).
+     */
+    private void sampleRoundTrip(long rtt) {
+        if (srtt == 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+        rto = Math.min(MAX_RTO, Math.max(MIN_RTO, srtt + Math.max(CLOCK_GRANULARITY, 4 * rttvar)));
+    }
+
+    private void backOff() {
+        TIMEOUTS.increment();
+        rto = Math.min(MAX_RTO, rto * 2);
+    }
+
+    private static int toMillis(long nanos) {
+        return (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos + 999_999));
+    }
+
+    /**
+     * Smoothed round-trip time in milliseconds, or 0 before the first sample.
+     */
+    public double roundTripTime() {
+        return srtt / 1e6;
+    }
+
+    public long retransmissions() {
+        return retransmissions;
+    }
+
+    private static int checkWindowSize(int windowSize) {
+        if (windowSize < 1 || windowSize > MAX_WINDOW_SIZE) {
+            throw new IllegalArgumentException("SNW window size must be between 1 and " + MAX_WINDOW_SIZE);
+        }
+        return windowSize;
+    }
+
+    private static int checkChunkSize(int chunkSize) {
+        if (chunkSize != AUTO_CHUNK_SIZE && (chunkSize < 1 || chunkSize > MAX_CHUNK_SIZE)) {
+            throw new IllegalArgumentException("SNW chunk size must be between 1 and " + MAX_CHUNK_SIZE);
+        }
+        return chunkSize;
+    }
+
+    /**
+     * Payload bytes per chunk sent to our peer: the configured size, or else the most that fits
+     * in one datagram on the interface the route to the peer leaves by. Chunks are then not
+     * fragmented on the first hop, and loopback transfers use datagrams of nearly 64 KB.
+     */
+    private int chunkSize() {
+        if (chunkSize == AUTO_CHUNK_SIZE) {
+            InetAddress address = remote.getAddress();
+            int overhead = address instanceof Inet6Address ? IPV6_OVERHEAD : IPV4_OVERHEAD;
+            int fit = interfaceMtu(address) - overhead - HEADER_SIZE;
+            chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, fit));
+        }
+        return chunkSize;
+    }
+
+    private static int interfaceMtu(InetAddress peer) {
+        try (DatagramSocket probe = new DatagramSocket()) {
+            // Connecting a datagram socket sends nothing; it only picks the route and local address
+            probe.connect(peer, 9);
+            NetworkInterface networkInterface = NetworkInterface.getByInetAddress(probe.getLocalAddress());
+            if (networkInterface != null && networkInterface.getMTU() > 0) {
+                return networkInterface.getMTU();
+            }
+        } catch (IOException e) {
+            // Fall back to the Ethernet MTU
+        }
+        return DEFAULT_MTU;
+    }
+
+    private void sendAck(byte type, int seqNum, SocketAddress target) throws IOException {
+        ackBuffer.clear();
+        ackBuffer.put(type).putInt(seqNum).flip();
+        sendPacket(ackBuffer, target);
+    }
+
+    // Type and sequence number of the received packet, or -1 for a runt
+    private int packetType() {
+        return packet.remaining() >= HEADER_SIZE ? packet.get(0) : -1;
     }
 
-    private int bytesToInt(byte[] bytes) {
-        return ((bytes[0] & 0xFF) << 24) |
-                ((bytes[1] & 0xFF) << 16) |
-                ((bytes[2] & 0xFF) << 8) |
-                (bytes[3] & 0xFF);
+    private int packetNumber() {
+        return packet.getInt(1);
     }
 
     @Override
     public void send(String message) throws IOException {
-        byte[] payload = message.getBytes("UTF-8");
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        if (payload.length > MAX_MESSAGE_SIZE) {
+            throw new IOException("Message of " + payload.length + " bytes does not fit in one datagram");
+        }
+        messageBuffer.clear();
+        messageBuffer.put(DATA).putInt(sequenceNumber).put(payload).flip();
+
         int retries = 0;
         boolean ackReceived = false;
 
-        while (!ackReceived && retries < MAX_RETRIES) {
-            // Build packet
-            byte[] packetData = new byte[1 + 4 + payload.length];
-            packetData[0] = 0; // Data packet
-            System.arraycopy(intToBytes(sequenceNumber), 0, packetData, 1, 4);
-            System.arraycopy(payload, 0, packetData, 5, payload.length);
-            DatagramPacket packet = new DatagramPacket(packetData, packetData.length, remoteAddress, remotePort);
-            socket.send(packet);
+        int originalTimeout = timeout;
+        try {
+            while (!ackReceived && retries < MAX_RETRIES) {
+                messageBuffer.rewind();
+                long sentAt = System.nanoTime();
+                sendPacket(messageBuffer, remote);
+                if (retries > 0) {
+                    retransmissions++;
+                    RETRANSMITS.increment();
+                }
 
-            try {
-                // Wait for ACK
-                byte[] ackBuffer = new byte[5];
-                DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
-                socket.receive(ackPacket);
-
-                if (ackPacket.getLength() >= 5 && ackBuffer[0] == 1) {
-                    int ackSeqNum = bytesToInt(Arrays.copyOfRange(ackBuffer, 1, 5));
-                    if (ackSeqNum == sequenceNumber) {
-                        ackReceived = true;
-                        sequenceNumber = (sequenceNumber + 1) % Integer.MAX_VALUE;
+                try {
+                    // Wait for ACK
+                    setTimeout(toMillis(rto));
+                    receivePacket();
+
+                    if (packetType() == ACK) {
+                        if (packetNumber() == sequenceNumber) {
+                            ackReceived = true;
+                            sequenceNumber = (sequenceNumber + 1) % Integer.MAX_VALUE;
+                            if (retries == 0) {
+                                sampleRoundTrip(System.nanoTime() - sentAt);
+                            }
+                        }
+                    } else if (packetType() == CHUNK) {
+                        // Peer missed our final chunk ACK; re-acknowledge so it can finish
+                        sendAck(CHUNK_ACK, packetNumber(), packetSender);
+                    } else if (packetType() == DATA) {
+                        acknowledgeDuplicate();
                     }
+                } catch (SocketTimeoutException e) {
+                    retries++;
+                    backOff();
                 }
-            } catch (SocketTimeoutException e) {
-                retries++;
             }
+        } finally {
+            setTimeout(originalTimeout);
         }
 
         if (!ackReceived) {
@@ -82,124 +398,315 @@ public class snw_transport implements Transport {
     @Override
     public String receive() throws IOException {
         while (true) {
-            byte[] buffer = new byte[CHUNK_SIZE + 5];
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
             try {
-                socket.receive(packet);
+                receivePacket();
             } catch (SocketTimeoutException e) {
                 // For server, continue waiting
                 continue;
             }
 
-            if (packet.getLength() >= 5 && buffer[0] == 0) {
-                int seqNum = bytesToInt(Arrays.copyOfRange(buffer, 1, 5));
-                byte[] payload = Arrays.copyOfRange(buffer, 5, packet.getLength());
-                String message = new String(payload, "UTF-8");
-
+            if (packetType() == DATA) {
                 // Send ACK
-                byte[] ackData = new byte[5];
-                ackData[0] = 1; // ACK packet
-                System.arraycopy(intToBytes(seqNum), 0, ackData, 1, 4);
-                DatagramPacket ackPacket = new DatagramPacket(ackData, ackData.length, packet.getAddress(), packet.getPort());
-                socket.send(ackPacket);
+                int seqNum = packetNumber();
+                sendAck(ACK, seqNum, packetSender);
+                if (seqNum == lastReceivedSequence) {
+                    continue;
+                }
+                lastReceivedSequence = seqNum;
 
                 // Set remote address and port if not already set (server-side)
-                if (remoteAddress == null) {
-                    remoteAddress = packet.getAddress();
-                    remotePort = packet.getPort();
+                if (remote == null) {
+                    remote = (InetSocketAddress) packetSender;
                 }
 
-                return message;
+                packet.position(HEADER_SIZE);
+                return StandardCharsets.UTF_8.decode(packet).toString();
+            } else if (packetType() == CHUNK) {
+                // Retransmitted chunk of a finished file; our ACK was lost
+                sendAck(CHUNK_ACK, packetNumber(), packetSender);
+            }
+        }
+    }
+
+    // Re-acknowledges a retransmission of the last delivered message while we are sending, so a
+    // peer that missed our ACK can move on and receive from us
+    private void acknowledgeDuplicate() throws IOException {
+        if (packetNumber() == lastReceivedSequence) {
+            sendAck(ACK, lastReceivedSequence, packetSender);
+        }
+    }
+
+    /**
+     * Returns at least {@code count} buffers of at least {@code packetSize} bytes, allocated once
+     * as a single direct block and reused by later transfers. The receive buffer is grown to
+     * match, since received chunks are swapped with window slots.
+     */
+    private ByteBuffer[] windowSlots(int count, int packetSize) {
+        if (slots.length < count || slotSize < packetSize) {
+            slotSize = Math.max(packetSize, MESSAGE_PACKET_SIZE);
+            ByteBuffer block = ByteBuffer.allocateDirect(count * slotSize);
+            slots = new ByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                block.limit((i + 1) * slotSize).position(i * slotSize);
+                slots[i] = block.slice();
             }
         }
+        if (packet.capacity() < slotSize) {
+            packet = ByteBuffer.allocateDirect(slotSize);
+        }
+        return slots;
     }
 
+    /**
+     * Streams the file using selective repeat: chunks are acknowledged individually and only lost
+     * chunks are resent. How many chunks are in flight is limited by {@code windowSize} and by a
+     * congestion window that grows with every ACK (slow start, then one chunk per round trip)
+     * and is halved when a chunk is reported missing, or dropped to one on a timeout. A chunk is
+     * resent when its RTO expires, or at once when a chunk well after it has been acknowledged.
+     * Only the chunks inside the window are buffered for retransmission, as ready-to-send packets.
+     * Chunks are sized by {@link #chunkSize()}, and the window shrinks for large chunks so no
+     * more than {@link #MAX_WINDOW_BYTES} are in flight.
+     */
     @Override
-    public void sendFile(byte[] data) throws IOException {
-        // First, send the file size as a message
-        send(String.valueOf(data.length));
-
-        int totalChunks = (data.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
-        for (int i = 0; i < totalChunks; i++) {
-            int offset = i * CHUNK_SIZE;
-            int length = Math.min(CHUNK_SIZE, data.length - offset);
-            byte[] chunk = Arrays.copyOfRange(data, offset, offset + length);
-            int retries = 0;
-            boolean ackReceived = false;
+    public void sendFrom(ReadableByteChannel source, long size) throws IOException {
+        int chunkSize = chunkSize();
+        long chunkCount = (size + chunkSize - 1) / chunkSize;
+        if (chunkCount > Integer.MAX_VALUE) {
+            throw new IOException("File of " + size + " bytes is too large for SNW transfer");
+        }
+        int totalChunks = (int) chunkCount;
 
-            while (!ackReceived && retries < MAX_RETRIES) {
-                // Build packet
-                byte[] packetData = new byte[1 + 4 + chunk.length];
-                packetData[0] = 0; // Data packet
-                System.arraycopy(intToBytes(sequenceNumber), 0, packetData, 1, 4);
-                System.arraycopy(chunk, 0, packetData, 5, chunk.length);
-                DatagramPacket packet = new DatagramPacket(packetData, packetData.length, remoteAddress, remotePort);
-                socket.send(packet);
+        // Large chunks get fewer slots, so the bytes in flight stay bounded
+        int window = Math.min(windowSize, Math.max(1, MAX_WINDOW_BYTES / chunkSize));
+
+        // First, announce the file size, window and chunk size so the receiver can size its reorder buffer
+        send(size + " " + window + " " + chunkSize);
+
+        ByteBuffer[] chunks = windowSlots(window, chunkSize + HEADER_SIZE);
+        boolean[] acked = new boolean[window];
+        long[] sentAt = new long[window];
+        long[] deadlines = new long[window];
+        int[] retries = new int[window];
+        boolean[] fastResent = new boolean[window];
+        int base = 0;
+        int next = 0;
+
+        congestionWindow = Math.min(window, INITIAL_CONGESTION_WINDOW);
+        slowStartThreshold = window;
+        // Losses among chunks sent before this point belong to a window that was already halved
+        int recoveryPoint = 0;
+
+        int originalTimeout = timeout;
+        try {
+            while (base < totalChunks) {
+                // Fill the window
+                int allowed = Math.min(window, (int) congestionWindow);
+                while (next < totalChunks && next - base < allowed) {
+                    int slot = next % window;
+                    int length = (int) Math.min(chunkSize, size - (long) next * chunkSize);
+                    readChunk(source, chunks[slot], next, length);
+                    acked[slot] = false;
+                    retries[slot] = 0;
+                    fastResent[slot] = false;
+                    sendPacket(chunks[slot], remote);
+                    sentAt[slot] = System.nanoTime();
+                    deadlines[slot] = sentAt[slot] + rto;
+                    next++;
+                }
+
+                // Resend every chunk whose ACK is overdue
+                long now = System.nanoTime();
+                long earliestDeadline = Long.MAX_VALUE;
+                boolean timedOut = false;
+                for (int i = base; i < next; i++) {
+                    int slot = i % window;
+                    if (acked[slot]) {
+                        continue;
+                    }
+                    if (now - deadlines[slot] >= 0) {
+                        if (++retries[slot] >= MAX_RETRIES) {
+                            throw new IOException("Failed to receive ACK after " + MAX_RETRIES + " attempts for file chunk " + i);
+                        }
+                        if (!timedOut) {
+                            // One timeout is one congestion event, however many chunks it covers
+                            timedOut = true;
+                            backOff();
+                            slowStartThreshold = Math.max(2, congestionWindow / 2);
+                            congestionWindow = 1;
+                            recoveryPoint = next;
+                        }
+                        resendChunk(chunks[slot]);
+                        // Each chunk also backs off on its own, as new samples reset the shared RTO
+                        deadlines[slot] = now + Math.min(MAX_RTO, rto << retries[slot]);
+                    }
+                    earliestDeadline = Math.min(earliestDeadline, deadlines[slot]);
+                }
 
                 try {
                     // Wait for ACK
-                    byte[] ackBuffer = new byte[5];
-                    DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
-                    socket.receive(ackPacket);
+                    setTimeout(toMillis(earliestDeadline - now));
+                    receivePacket();
 
-                    if (ackPacket.getLength() >= 5 && ackBuffer[0] == 1) {
-                        int ackSeqNum = bytesToInt(Arrays.copyOfRange(ackBuffer, 1, 5));
-                        if (ackSeqNum == sequenceNumber) {
-                            ackReceived = true;
-                            sequenceNumber = (sequenceNumber + 1) % Integer.MAX_VALUE;
+                    if (packetType() == CHUNK_ACK) {
+                        int ackIndex = packetNumber();
+                        if (ackIndex >= base && ackIndex < next && !acked[ackIndex % window]) {
+                            int ackSlot = ackIndex % window;
+                            acked[ackSlot] = true;
+                            if (retries[ackSlot] == 0 && !fastResent[ackSlot]) {
+                                sampleRoundTrip(System.nanoTime() - sentAt[ackSlot]);
+                            }
+                            if (congestionWindow < slowStartThreshold) {
+                                congestionWindow += 1;
+                            } else {
+                                congestionWindow += 1 / congestionWindow;
+                            }
+                            congestionWindow = Math.min(congestionWindow, window);
+
+                            // Chunks well before this one are presumed lost: resend them now
+                            long resentAt = System.nanoTime();
+                            for (int i = base; i <= ackIndex - REORDER_THRESHOLD; i++) {
+                                int slot = i % window;
+                                if (acked[slot] || retries[slot] > 0 || fastResent[slot]) {
+                                    continue;
+                                }
+                                fastResent[slot] = true;
+                                if (i >= recoveryPoint) {
+                                    slowStartThreshold = Math.max(2, congestionWindow / 2);
+                                    congestionWindow = slowStartThreshold;
+                                    recoveryPoint = next;
+                                }
+                                resendChunk(chunks[slot]);
+                                deadlines[slot] = resentAt + rto;
+                            }
+
+                            // Slide the window past every contiguously acknowledged chunk
+                            while (base < next && acked[base % window]) {
+                                base++;
+                            }
                         }
+                    } else if (packetType() == DATA) {
+                        acknowledgeDuplicate();
                     }
                 } catch (SocketTimeoutException e) {
-                    retries++;
+                    // Overdue chunks are resent at the top of the loop
                 }
             }
+        } finally {
+            setTimeout(originalTimeout);
+        }
+    }
+
+    private void resendChunk(ByteBuffer chunk) throws IOException {
+        chunk.rewind();
+        sendPacket(chunk, remote);
+        retransmissions++;
+        RETRANSMITS.increment();
+    }
 
-            if (!ackReceived) {
-                throw new IOException("Failed to receive ACK after " + MAX_RETRIES + " attempts for file chunk");
+    // Builds the packet for one chunk in place: header, then the chunk read straight from the source
+    private void readChunk(ReadableByteChannel source, ByteBuffer chunk, int chunkIndex, int length) throws IOException {
+        chunk.clear();
+        chunk.put(CHUNK).putInt(chunkIndex);
+        chunk.limit(HEADER_SIZE + length);
+        while (chunk.hasRemaining()) {
+            if (source.read(chunk) < 0) {
+                throw new EOFException("Source ended before the announced file size");
             }
         }
+        chunk.flip();
     }
 
+    /**
+     * Receives a file sent by {@link #sendFrom}. Chunks may arrive out of order; any chunk inside
+     * the sender's window is acknowledged and buffered, and the contiguous prefix is written to
+     * {@code sink} as soon as it is complete. A buffered chunk keeps the buffer it arrived in, and
+     * that slot's previous buffer receives the next datagram, so nothing is copied.
+     */
     @Override
-    public byte[] receiveFile() throws IOException {
-        // First, receive the file size
-        String sizeStr = receive();
-        int fileSize = Integer.parseInt(sizeStr);
+    public long receiveTo(WritableByteChannel sink) throws IOException {
+        // First, receive the file size, the sender's window and its chunk size. They come from
+        // the peer, so anything malformed fails this transfer, not the session's thread
+        String message = receive();
+        String[] header = message.split(" ");
+        long fileSize;
+        int window;
+        int chunkSize;
+        try {
+            fileSize = Long.parseLong(header[0]);
+            window = header.length > 1 ? Integer.parseInt(header[1]) : 1;
+            chunkSize = header.length > 2 ? Integer.parseInt(header[2]) : DEFAULT_CHUNK_SIZE;
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed SNW transfer header: " + message);
+        }
+        if (fileSize < 0 || window < 1 || window > MAX_WINDOW_SIZE || chunkSize < 1 || chunkSize > MAX_CHUNK_SIZE
+                || (long) window * chunkSize > MAX_WINDOW_BYTES) {
+            throw new IOException("Unsupported SNW transfer of " + fileSize + " bytes in a window of " + window
+                    + " chunks of " + chunkSize + " bytes");
+        }
+        long chunkCount = fileSize / chunkSize + (fileSize % chunkSize == 0 ? 0 : 1);
+        if (chunkCount > Integer.MAX_VALUE) {
+            throw new IOException("SNW transfer of " + fileSize + " bytes needs too many chunks of " + chunkSize + " bytes");
+        }
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        int totalReceived = 0;
+        int totalChunks = (int) chunkCount;
+        ByteBuffer[] chunks = windowSlots(window, chunkSize + HEADER_SIZE);
+        boolean[] received = new boolean[window];
+        int base = 0;
 
-        while (totalReceived < fileSize) {
-            byte[] buffer = new byte[CHUNK_SIZE + 5];
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-            socket.receive(packet);
+        while (base < totalChunks) {
+            receivePacket();
 
-            if (packet.getLength() >= 5 && buffer[0] == 0) {
-                int seqNum = bytesToInt(Arrays.copyOfRange(buffer, 1, 5));
-                byte[] chunk = Arrays.copyOfRange(buffer, 5, packet.getLength());
-                baos.write(chunk);
-                totalReceived += chunk.length;
+            if (packetType() == CHUNK) {
+                int chunkIndex = packetNumber();
+                int length = packet.remaining() - HEADER_SIZE;
+                if (chunkIndex >= 0 && chunkIndex < base) {
+                    // Duplicate of a chunk we already have; its ACK was lost
+                    sendAck(CHUNK_ACK, chunkIndex, packetSender);
+                } else if (chunkIndex >= base && chunkIndex < base + window && chunkIndex < totalChunks
+                        && length == Math.min(chunkSize, fileSize - (long) chunkIndex * chunkSize)) {
+                    SocketAddress sender = packetSender;
+                    int slot = chunkIndex % window;
+                    if (!received[slot]) {
+                        ByteBuffer filled = packet;
+                        packet = chunks[slot];
+                        chunks[slot] = filled;
+                        received[slot] = true;
+                    }
+                    sendAck(CHUNK_ACK, chunkIndex, sender);
 
-                // Send ACK
-                byte[] ackData = new byte[5];
-                ackData[0] = 1; // ACK packet
-                System.arraycopy(intToBytes(seqNum), 0, ackData, 1, 4);
-                DatagramPacket ackPacket = new DatagramPacket(ackData, ackData.length, packet.getAddress(), packet.getPort());
-                socket.send(ackPacket);
+                    // Deliver every contiguously received chunk and slide the window
+                    while (base < totalChunks && received[base % window]) {
+                        int baseSlot = base % window;
+                        ByteBuffer chunk = chunks[baseSlot];
+                        chunk.position(HEADER_SIZE);
+                        while (chunk.hasRemaining()) {
+                            sink.write(chunk);
+                        }
+                        received[baseSlot] = false;
+                        base++;
+                    }
+                }
 
                 // Set remote address and port if not already set (server-side)
-                if (remoteAddress == null) {
-                    remoteAddress = packet.getAddress();
-                    remotePort = packet.getPort();
+                if (remote == null) {
+                    remote = (InetSocketAddress) packetSender;
                 }
+            } else if (packetType() == DATA) {
+                // Retransmitted size header; our ACK was lost
+                sendAck(ACK, packetNumber(), packetSender);
             }
         }
 
-        return baos.toByteArray();
+        return fileSize;
     }
 
     @Override
-    public void close() {
-        socket.close();
+    public void close() throws IOException {
+        if (inbox == null) {
+            selector.close();
+            channel.close();
+        } else {
+            onClose.run();
+        }
     }
 }
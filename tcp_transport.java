@@ -1,14 +1,36 @@
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 
 public class tcp_transport implements Transport {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Bodies up to this size are copied, so they leave in one segment with their size
+    private static final int COALESCE_LIMIT = 8 * 1024;
+
     private final Socket socket;
+    private final SocketChannel channel;
+    private final DrainableInputStream bufferedIn;
     private final DataInputStream dataIn;
     private final DataOutputStream dataOut;
+    // Separate buffers, so one thread can send while another receives
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(BUFFER_SIZE);
 
+    /**
+     * Sockets obtained from a {@link SocketChannel} get the zero-copy path: files are sent with
+     * {@link FileChannel#transferTo} (sendfile) and received with {@link FileChannel#transferFrom}.
+     */
     public tcp_transport(Socket socket) throws IOException {
         this.socket = socket;
-        this.dataIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        // Every message is flushed as a whole, so Nagle's algorithm would only delay replies
+        socket.setTcpNoDelay(true);
+        this.channel = socket.getChannel();
+        this.bufferedIn = new DrainableInputStream(socket.getInputStream());
+        this.dataIn = new DataInputStream(bufferedIn);
         this.dataOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
     }
 
@@ -24,18 +46,131 @@ public class tcp_transport implements Transport {
     }
 
     @Override
-    public void sendFile(byte[] data) throws IOException {
-        dataOut.writeInt(data.length);
-        dataOut.write(data);
+    public void sendFrom(ReadableByteChannel source, long size) throws IOException {
+        dataOut.writeLong(size);
+        if (source instanceof FramedSource) {
+            // The header goes out with the size; the data takes the path that suits its source
+            FramedSource frame = (FramedSource) source;
+            ByteBuffer header = frame.header();
+            int length = header.remaining();
+            dataOut.write(header.array(), header.arrayOffset() + header.position(), length);
+            header.position(header.limit());
+            source = frame.data();
+            size -= length;
+        }
+        if (channel != null && source instanceof FileChannel) {
+            dataOut.flush();
+            transferFile((FileChannel) source, size);
+            return;
+        }
+        if (channel != null && source instanceof DirectSource && size > COALESCE_LIMIT) {
+            dataOut.flush();
+            ((DirectSource) source).transferTo(size, channel);
+            return;
+        }
+
+        long remaining = size;
+        while (remaining > 0) {
+            sendBuffer.clear();
+            sendBuffer.limit((int) Math.min(BUFFER_SIZE, remaining));
+            int read = source.read(sendBuffer);
+            if (read < 0) {
+                throw new EOFException("Source ended " + remaining + " bytes before the announced size");
+            }
+            dataOut.write(sendBuffer.array(), 0, read);
+            remaining -= read;
+        }
         dataOut.flush();
     }
 
+    private void transferFile(FileChannel file, long size) throws IOException {
+        long start = file.position();
+        long position = start;
+        long end = start + size;
+        while (position < end) {
+            long transferred = file.transferTo(position, end - position, channel);
+            if (transferred <= 0 && position >= file.size()) {
+                throw new EOFException("File ended " + (end - position) + " bytes before the announced size");
+            }
+            position += transferred;
+        }
+        file.position(end);
+    }
+
     @Override
-    public byte[] receiveFile() throws IOException {
-        int length = dataIn.readInt();
-        byte[] data = new byte[length];
-        dataIn.readFully(data);
-        return data;
+    public long receiveTo(WritableByteChannel sink) throws IOException {
+        long size = dataIn.readLong();
+        long remaining = size;
+        if (sink instanceof FramedSink) {
+            // Parse the header first, so the data can still be received straight into a file
+            FramedSink reader = (FramedSink) sink;
+            int needed;
+            while ((needed = reader.headerBytesNeeded()) > 0 && remaining > 0) {
+                int length = (int) Math.min(needed, remaining);
+                dataIn.readFully(receiveBuffer.array(), 0, length);
+                reader.write(ByteBuffer.wrap(receiveBuffer.array(), 0, length));
+                remaining -= length;
+            }
+            if (needed > 0) {
+                return size;
+            }
+            sink = reader.dataSink();
+        }
+        if (channel != null && sink instanceof FileChannel) {
+            receiveFile((FileChannel) sink, remaining);
+            return size;
+        }
+
+        while (remaining > 0) {
+            int read = dataIn.read(receiveBuffer.array(), 0, (int) Math.min(BUFFER_SIZE, remaining));
+            if (read < 0) {
+                throw new EOFException("Connection closed " + remaining + " bytes before end of file");
+            }
+            receiveBuffer.clear();
+            receiveBuffer.limit(read);
+            while (receiveBuffer.hasRemaining()) {
+                sink.write(receiveBuffer);
+            }
+            remaining -= read;
+        }
+        return size;
+    }
+
+    private void receiveFile(FileChannel file, long size) throws IOException {
+        long position = file.position();
+        long end = position + size;
+
+        // Bytes already pulled into the stream buffer must be written before reading the channel
+        receiveBuffer.clear();
+        receiveBuffer.limit((int) Math.min(BUFFER_SIZE, size));
+        bufferedIn.drainTo(receiveBuffer);
+        receiveBuffer.flip();
+        while (receiveBuffer.hasRemaining()) {
+            position += file.write(receiveBuffer, position);
+        }
+
+        while (position < end) {
+            long transferred = file.transferFrom(channel, position, end - position);
+            if (transferred <= 0) {
+                throw new EOFException("Connection closed " + (end - position) + " bytes before end of file");
+            }
+            position += transferred;
+        }
+        file.position(end);
+    }
+
+    /**
+     * Whether bytes of the next message have already been read from the socket into the buffer.
+     */
+    public boolean hasBufferedInput() {
+        return bufferedIn.buffered() > 0;
+    }
+
+    /**
+     * Whether bytes of the next message have arrived, in the buffer or still in the socket.
+     */
+    public boolean hasInput() throws IOException {
+        return bufferedIn.available() > 0;
     }
 
     @Override
@@ -44,4 +179,24 @@ public class tcp_transport implements Transport {
         dataOut.close();
         socket.close();
     }
+
+    /**
+     * Buffered stream that can hand over the bytes it has already read from the socket, so the
+     * rest of a file can be read from the channel directly without losing data.
+     */
+    private static class DrainableInputStream extends BufferedInputStream {
+        DrainableInputStream(InputStream in) {
+            super(in);
+        }
+
+        synchronized void drainTo(ByteBuffer target) {
+            int length = Math.min(count - pos, target.remaining());
+            target.put(buf, pos, length);
+            pos += length;
+        }
+
+        synchronized int buffered() {
+            return count - pos;
+        }
+    }
 }